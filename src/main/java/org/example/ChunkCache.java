@@ -0,0 +1,147 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ChunkCache {
+
+    public static final long DEFAULT_CAPACITY_BYTES = 32L * 1024 * 1024;
+
+    public interface ChunkLoader {
+        byte[] load(String fileHash, int chunkIndex);
+    }
+
+    private static final class Key {
+        final String fileHash;
+        final int chunkIndex;
+
+        Key(String fileHash, int chunkIndex) {
+            this.fileHash = fileHash;
+            this.chunkIndex = chunkIndex;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return chunkIndex == k.chunkIndex && fileHash.equals(k.fileHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fileHash, chunkIndex);
+        }
+    }
+
+    private static final class Slot {
+        final int index;
+        final int length;
+
+        Slot(int index, int length) {
+            this.index = index;
+            this.length = length;
+        }
+    }
+
+    private final int slotSize;
+    // one off-heap slab cut into fixed slots, so caching never allocates per chunk
+    private final ByteBuffer slab;
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private final LinkedHashMap<Key, Slot> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ChunkCache(long capacityBytes, int slotSize) {
+        this.slotSize = slotSize;
+        int slots = (int) Math.max(1, Math.min(Integer.MAX_VALUE / slotSize, capacityBytes / slotSize));
+        this.slab = ByteBuffer.allocateDirect(slots * slotSize);
+        for (int i = 0; i < slots; i++) {
+            freeSlots.add(i);
+        }
+    }
+
+    public byte[] get(String fileHash, int chunkIndex, ChunkLoader loader) {
+        Key key = new Key(fileHash, chunkIndex);
+        byte[] cached = lookup(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+
+        // concurrent misses for the same chunk share one disk read
+        CompletableFuture<byte[]> mine = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            return existing.join();
+        }
+        try {
+            byte[] data = loader.load(fileHash, chunkIndex);
+            if (data != null) {
+                store(key, data);
+            }
+            mine.complete(data);
+            return data;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private synchronized byte[] lookup(Key key) {
+        Slot slot = lru.get(key);
+        if (slot == null) {
+            return null;
+        }
+        byte[] out = new byte[slot.length];
+        slab.get(slot.index * slotSize, out, 0, slot.length);
+        return out;
+    }
+
+    private synchronized void store(Key key, byte[] data) {
+        if (data.length > slotSize || lru.containsKey(key)) {
+            return;
+        }
+        if (freeSlots.isEmpty()) {
+            Iterator<Map.Entry<Key, Slot>> eldest = lru.entrySet().iterator();
+            freeSlots.add(eldest.next().getValue().index);
+            eldest.remove();
+        }
+        int index = freeSlots.poll();
+        slab.put(index * slotSize, data, 0, data.length);
+        lru.put(key, new Slot(index, data.length));
+    }
+
+    public synchronized void invalidate(String fileHash) {
+        Iterator<Map.Entry<Key, Slot>> it = lru.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Slot> e = it.next();
+            if (e.getKey().fileHash.equals(fileHash)) {
+                freeSlots.add(e.getValue().index);
+                it.remove();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int size() {
+        return lru.size();
+    }
+}
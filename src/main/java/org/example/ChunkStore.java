@@ -0,0 +1,162 @@
+package org.example;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ChunkStore {
+
+    // content-defined chunk boundaries (gear hash), ~8 KB average
+    private static final int MIN_CHUNK = 2 * 1024;
+    private static final int MAX_CHUNK = 64 * 1024;
+    private static final long BOUNDARY_MASK = (1L << 13) - 1;
+    private static final long[] GEAR = new long[256];
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    // one entry per local chunk, about 8 GB of indexed content; files past it are shared but not indexed
+    static final int MAX_LOCATIONS = 1 << 20;
+
+    static {
+        Random rnd = new Random(0x5eed471L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = rnd.nextLong();
+        }
+    }
+
+    public static class ChunkRef {
+        private final String hash;
+        private final int length;
+
+        public ChunkRef(String hash, int length) {
+            this.hash = hash;
+            this.length = length;
+        }
+
+        public String getHash() { return hash; }
+        public int getLength() { return length; }
+    }
+
+    private static class ChunkLocation {
+        final File file;
+        final long offset;
+        final int length;
+
+        ChunkLocation(File file, long offset, int length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Map<String, List<ChunkRef>> manifests = new ConcurrentHashMap<>();
+    private final Map<String, ChunkLocation> locations = new ConcurrentHashMap<>();
+    // files with chunks in locations, so a changed or vanished file can be dropped without a full sweep each time
+    private final Set<File> indexedFiles = ConcurrentHashMap.newKeySet();
+
+    public void indexFile(String fileHash, File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            indexFile(fileHash, file, in);
+        } catch (IOException e) {
+            System.err.println("[ChunkStore] Failed to index " + file.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
+    // content is the file's bytes, for a file just written from memory; the chunks still point into the file
+    public void indexFile(String fileHash, File file, InputStream in) {
+        if (indexedFiles.remove(file)) {
+            // re-indexed after a change: its old chunks would only fail verification later
+            locations.values().removeIf(loc -> loc.file.equals(file));
+        }
+        if (locations.size() >= MAX_LOCATIONS) {
+            System.out.println("[ChunkStore] Index full, not indexing " + file.getName());
+            return;
+        }
+        indexedFiles.add(file);
+        List<ChunkRef> refs = new ArrayList<>();
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] readBuf = new byte[READ_BUFFER_SIZE];
+            byte[] chunk = new byte[MAX_CHUNK];
+            long offset = 0;
+            int len = 0;
+            long gear = 0;
+            int n;
+            while ((n = in.read(readBuf)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    int b = readBuf[i] & 0xff;
+                    chunk[len++] = (byte) b;
+                    gear = (gear << 1) + GEAR[b];
+                    boolean boundary = len >= MIN_CHUNK && (gear & BOUNDARY_MASK) == 0;
+                    if (boundary || len == MAX_CHUNK) {
+                        refs.add(addChunk(md, file, offset, chunk, len));
+                        offset += len;
+                        len = 0;
+                        gear = 0;
+                    }
+                }
+            }
+            if (len > 0) {
+                refs.add(addChunk(md, file, offset, chunk, len));
+            }
+        } catch (Exception e) {
+            System.err.println("[ChunkStore] Failed to index " + file.getAbsolutePath() + ": " + e.getMessage());
+            return;
+        }
+        manifests.put(fileHash, Collections.unmodifiableList(refs));
+        System.out.println("[ChunkStore] Indexed " + file.getName() + " -> " + refs.size()
+                + " chunks, " + locations.size() + " unique chunks total");
+    }
+
+    private ChunkRef addChunk(MessageDigest md, File file, long offset, byte[] chunk, int len) {
+        md.update(chunk, 0, len);
+        String hash = HashKey.toHex(md.digest());
+        locations.putIfAbsent(hash, new ChunkLocation(file, offset, len));
+        return new ChunkRef(hash, len);
+    }
+
+    public List<ChunkRef> getManifest(String fileHash) {
+        return manifests.get(fileHash);
+    }
+
+    // after a rescan: drops the manifests of content no longer shared and the chunks of files no longer there
+    public void retain(Set<String> fileHashes, Set<File> files) {
+        manifests.keySet().retainAll(fileHashes);
+        if (indexedFiles.retainAll(files)) {
+            locations.values().removeIf(loc -> !files.contains(loc.file));
+        }
+    }
+
+    // nothing indexed yet, so no remote file can be rebuilt from local data
+    public boolean isEmpty() {
+        return locations.isEmpty();
+    }
+
+    public boolean hasChunk(String chunkHash) {
+        return locations.containsKey(chunkHash);
+    }
+
+    // returns the chunk bytes from whichever local file holds them, or null if missing or stale
+    public byte[] readLocal(String chunkHash) {
+        ChunkLocation loc = locations.get(chunkHash);
+        if (loc == null) {
+            return null;
+        }
+        byte[] data = new byte[loc.length];
+        try (RandomAccessFile raf = new RandomAccessFile(loc.file, "r")) {
+            raf.seek(loc.offset);
+            raf.readFully(data);
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            if (HashKey.toHex(md.digest(data)).equals(chunkHash)) {
+                return data;
+            }
+        } catch (Exception e) {
+            // file changed or vanished, fall through
+        }
+        locations.remove(chunkHash, loc);
+        return null;
+    }
+}
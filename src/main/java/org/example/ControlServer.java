@@ -0,0 +1,244 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Line-based control endpoint, bound to loopback only. Every reply ends with "OK" or "ERR <reason>",
+// so it can be driven with nc as well as from scripts.
+public class ControlServer implements Runnable, NodeListener {
+
+    public static final int DEFAULT_PORT = 55557;
+
+    private final P2PNode node;
+    private final int port;
+    private final ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+    // hash -> "name|size" from the latest search responses
+    private final Map<String, String> searchResults = new ConcurrentHashMap<>();
+    private volatile ServerSocket serverSocket;
+    private volatile boolean running;
+
+    public ControlServer(P2PNode node, int port) {
+        this.node = node;
+        this.port = port;
+    }
+
+    public void open() throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        running = true;
+        System.out.println("[ControlServer] Listening on " + serverSocket.getLocalSocketAddress());
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Socket client = serverSocket.accept();
+                clients.submit(() -> serve(client));
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            //skip this.
+        }
+        clients.shutdownNow();
+    }
+
+    @Override
+    public void onSearchResults(String fromIp, String responseData) {
+        for (String line : responseData.split("\n")) {
+            String[] parts = line.split("\\|");
+            if (parts.length >= 3) {
+                searchResults.put(parts[1], parts[0] + "|" + parts[2]);
+            }
+        }
+    }
+
+    @Override
+    public void onDownloadFinished(String fileHash, File outFile) {
+        System.out.println("[ControlServer] Download finished: " + fileHash + " -> " + outFile.getAbsolutePath());
+    }
+
+    private void serve(Socket client) {
+        try (client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(client.getOutputStream(), true, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                if (line.equalsIgnoreCase("quit")) break;
+                try {
+                    handle(line, out);
+                } catch (Exception e) {
+                    out.println("ERR " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            //client went away.
+        }
+    }
+
+    private void handle(String line, PrintWriter out) {
+        String[] args = line.split("\\s+", 3);
+        String cmd = args[0].toLowerCase();
+        switch (cmd) {
+            case "help":
+                out.println("search <words> [ext:a,b] [-ext:c] [size:1M-700M] [limit:n] | results | download <hash> [size] | delta <hash> <size> <old-file> | downloads");
+                out.println("folder <ip> [path] | folders");
+                out.println("pause <hash> | resume <hash> | cancel <hash> | peers | stats | shutdown | quit");
+                out.println("OK");
+                break;
+
+            case "search":
+                if (args.length < 2) {
+                    out.println("ERR usage: search <query>");
+                    return;
+                }
+                String query = line.substring(line.indexOf(' ') + 1).trim();
+                searchResults.clear();
+                node.searchFile(query);
+                out.println("OK search sent, use 'results' to list responses");
+                break;
+
+            case "results":
+                for (Map.Entry<String, String> e : searchResults.entrySet()) {
+                    out.println(e.getValue().split("\\|")[0] + "|" + e.getKey() + "|" + e.getValue().split("\\|")[1]
+                            + "|peers=" + node.getPeersForFile(e.getKey()).size());
+                }
+                out.println("OK");
+                break;
+
+            case "download":
+                if (args.length < 2) {
+                    out.println("ERR usage: download <hash> [size]");
+                    return;
+                }
+                download(args, out);
+                break;
+
+            case "delta":
+                String[] rest = (args.length == 3) ? args[2].split("\\s+", 2) : new String[0];
+                if (rest.length < 2) {
+                    out.println("ERR usage: delta <hash> <size> <old-file>");
+                    return;
+                }
+                File base = new File(rest[1]);
+                if (!base.isFile()) {
+                    out.println("ERR not a file: " + rest[1]);
+                    return;
+                }
+                node.downloadDelta(args[1], Long.parseLong(rest[0]), base);
+                out.println("OK downloading " + args[1] + " against " + base.getAbsolutePath());
+                break;
+
+            case "folder":
+                if (args.length < 2) {
+                    out.println("ERR usage: folder <ip> [path]");
+                    return;
+                }
+                FolderDownload job = node.downloadFolder(args[1], (args.length == 3) ? args[2].trim() : "");
+                out.println((job != null) ? "OK downloading folder into " + job.getTargetDir().getAbsolutePath()
+                        : "ERR no destination folder");
+                break;
+
+            case "folders":
+                for (FolderDownload f : node.getFolderDownloads()) {
+                    out.printf("%s:/%s %s %.2f%% %s%n", f.getSourceIp(), f.getFolder(), f.getState(), f.getProgress(),
+                            f.getSummary());
+                }
+                out.println("OK");
+                break;
+
+            case "downloads":
+                for (DownloadManager dm : node.getActiveDownloads().values()) {
+                    out.printf("%s %s %.2f%%%n", dm.getFileHash(), dm.getState(), dm.getProgress());
+                }
+                out.println("OK");
+                break;
+
+            case "pause":
+            case "resume":
+            case "cancel":
+                if (args.length < 2) {
+                    out.println("ERR usage: " + cmd + " <hash>");
+                    return;
+                }
+                boolean found = cmd.equals("pause") ? node.pauseDownload(args[1])
+                        : cmd.equals("resume") ? node.resumeDownload(args[1])
+                        : node.cancelDownload(args[1]);
+                out.println(found ? "OK" : "ERR no active download " + args[1]);
+                break;
+
+            case "peers":
+                for (PeerInfo p : node.getDiscoveredPeers()) {
+                    RttEstimator rtt = node.getRttStats().get(p.getIpAddress());
+                    out.println(p.getIpAddress() + " " + ((rtt != null) ? rtt : "no rtt samples"));
+                }
+                out.println("OK");
+                break;
+
+            case "stats":
+                stats(out);
+                break;
+
+            case "shutdown":
+                out.println("OK shutting down");
+                stop();
+                node.shutdown();
+                break;
+
+            default:
+                out.println("ERR unknown command '" + cmd + "', try help");
+        }
+    }
+
+    private void download(String[] args, PrintWriter out) {
+        String hash = args[1];
+        long size;
+        if (args.length >= 3) {
+            size = Long.parseLong(args[2]);
+        } else if (searchResults.containsKey(hash)) {
+            size = Long.parseLong(searchResults.get(hash).split("\\|")[1].trim());
+        } else {
+            out.println("ERR unknown size for " + hash + ", search first or pass it");
+            return;
+        }
+        Set<PeerInfo> peers = node.getPeersForFile(hash);
+        node.downloadFile(hash, size, true, peers);
+        out.println("OK downloading " + hash + " from " + (peers.isEmpty() ? "DHT lookup" : peers.size() + " peer(s)"));
+    }
+
+    private void stats(PrintWriter out) {
+        UploadScheduler up = node.getUploadScheduler();
+        ChunkCache cache = node.getChunkCache();
+        out.println("connected=" + node.isConnected() + " nodeId=" + node.getNodeId());
+        out.println("peers=" + node.getDiscoveredPeers().size() + " downloads=" + node.getActiveDownloads().size());
+        out.println("packetsSent=" + node.getPacketsSent() + " datagramsSent=" + node.getDatagramsSent());
+        out.println("uploadsServed=" + up.getServedCount() + " uploadsRejected=" + up.getRejectedCount());
+        out.println("cacheHits=" + cache.getHits() + " cacheMisses=" + cache.getMisses() + " cachedChunks=" + cache.size());
+        out.println("OK");
+    }
+}
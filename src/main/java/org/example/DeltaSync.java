@@ -0,0 +1,198 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// rsync-style delta: the downloader signs fixed-size blocks of its old copy, the source slides a rolling
+// checksum over the new file and answers with where each of those blocks reappears
+public final class DeltaSync {
+
+    // weak checksum (int) + truncated MD5 (long) per block
+    static final int SIGNATURE_BYTES = 4 + 8;
+    // target offset (long) + first base block (int) + block count (int)
+    static final int COPY_BYTES = 8 + 4 + 4;
+    static final int MIN_BLOCK = 4 * 1024;
+    // bigger files get bigger blocks, so the signature upload stays bounded
+    static final int MAX_BLOCKS = 64 * 1024;
+    // the scan holds two blocks in memory; with MAX_BLOCKS this covers bases up to 64 GB
+    static final int MAX_BLOCK = 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // target bytes [targetOffset, targetOffset + count * blockSize) equal base blocks [baseBlock, baseBlock + count)
+    public static class Copy {
+        private final long targetOffset;
+        private final int baseBlock;
+        private final int count;
+
+        public Copy(long targetOffset, int baseBlock, int count) {
+            this.targetOffset = targetOffset;
+            this.baseBlock = baseBlock;
+            this.count = count;
+        }
+
+        public long getTargetOffset() { return targetOffset; }
+        public int getBaseBlock() { return baseBlock; }
+        public int getCount() { return count; }
+    }
+
+    private DeltaSync() {
+    }
+
+    static int blockSizeFor(long baseSize) {
+        int block = MIN_BLOCK;
+        while (baseSize / block > MAX_BLOCKS && block < MAX_BLOCK) {
+            block *= 2;
+        }
+        return block;
+    }
+
+    // signatures of every full block; a short tail is not worth matching
+    static byte[] sign(File base, int blockSize) throws IOException {
+        int blocks = (int) (base.length() / blockSize);
+        ByteBuffer out = ByteBuffer.allocate(blocks * SIGNATURE_BYTES);
+        MessageDigest md5 = md5();
+        byte[] block = new byte[blockSize];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(base), READ_BUFFER_SIZE)) {
+            for (int i = 0; i < blocks; i++) {
+                if (in.readNBytes(block, 0, blockSize) < blockSize) break;
+                out.putInt(weak(block, 0, blockSize));
+                out.putLong(strong(md5, block));
+            }
+        }
+        return out.array();
+    }
+
+    // runs on a worker thread: reads the whole target once
+    static List<Copy> computeDelta(File target, int blockSize, byte[] signatures) throws IOException {
+        int blocks = signatures.length / SIGNATURE_BYTES;
+        long[] strongs = new long[blocks];
+        Map<Integer, List<Integer>> byWeak = new HashMap<>();
+        ByteBuffer sigs = ByteBuffer.wrap(signatures);
+        for (int i = 0; i < blocks; i++) {
+            byWeak.computeIfAbsent(sigs.getInt(), k -> new ArrayList<>(1)).add(i);
+            strongs[i] = sigs.getLong();
+        }
+
+        List<Copy> copies = new ArrayList<>();
+        if (blocks == 0) {
+            return copies;
+        }
+        MessageDigest md5 = md5();
+        byte[] window = new byte[blockSize];
+        byte[] linear = new byte[blockSize];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(target), READ_BUFFER_SIZE)) {
+            if (in.readNBytes(window, 0, blockSize) < blockSize) {
+                return copies;
+            }
+            long pos = 0;
+            int head = 0;
+            int w = weak(window, 0, blockSize);
+            int a = w & 0xffff;
+            int b = w >>> 16;
+            int lastBlock = -1;
+            while (true) {
+                int match = -1;
+                List<Integer> candidates = byWeak.get(((b & 0xffff) << 16) | (a & 0xffff));
+                if (candidates != null) {
+                    System.arraycopy(window, head, linear, 0, blockSize - head);
+                    System.arraycopy(window, 0, linear, blockSize - head, head);
+                    long s = strong(md5, linear);
+                    // the block after the previous match is the likeliest, and keeps runs long
+                    if (lastBlock + 1 < blocks && strongs[lastBlock + 1] == s && candidates.contains(lastBlock + 1)) {
+                        match = lastBlock + 1;
+                    } else {
+                        for (int c : candidates) {
+                            if (strongs[c] == s) {
+                                match = c;
+                                break;
+                            }
+                        }
+                    }
+                }
+                if (match >= 0) {
+                    addCopy(copies, pos, match, blockSize);
+                    lastBlock = match;
+                    pos += blockSize;
+                    if (in.readNBytes(window, 0, blockSize) < blockSize) break;
+                    head = 0;
+                    w = weak(window, 0, blockSize);
+                    a = w & 0xffff;
+                    b = w >>> 16;
+                    continue;
+                }
+                int next = in.read();
+                if (next < 0) break;
+                int old = window[head] & 0xff;
+                window[head] = (byte) next;
+                head = (head + 1) % blockSize;
+                pos++;
+                a += next - old;
+                b += a - blockSize * old;
+            }
+        }
+        return copies;
+    }
+
+    private static void addCopy(List<Copy> copies, long targetOffset, int block, int blockSize) {
+        if (!copies.isEmpty()) {
+            Copy last = copies.get(copies.size() - 1);
+            if (last.targetOffset + (long) last.count * blockSize == targetOffset && last.baseBlock + last.count == block) {
+                copies.set(copies.size() - 1, new Copy(last.targetOffset, last.baseBlock, last.count + 1));
+                return;
+            }
+        }
+        copies.add(new Copy(targetOffset, block, 1));
+    }
+
+    static byte[] encode(List<Copy> copies, int from, int to) {
+        ByteBuffer out = ByteBuffer.allocate((to - from) * COPY_BYTES);
+        for (int i = from; i < to; i++) {
+            Copy c = copies.get(i);
+            out.putLong(c.targetOffset).putInt(c.baseBlock).putInt(c.count);
+        }
+        return out.array();
+    }
+
+    static List<Copy> decode(byte[] data) {
+        List<Copy> copies = new ArrayList<>();
+        ByteBuffer in = ByteBuffer.wrap(data);
+        while (in.remaining() >= COPY_BYTES) {
+            copies.add(new Copy(in.getLong(), in.getInt(), in.getInt()));
+        }
+        return copies;
+    }
+
+    // rsync's weak checksum: a = sum of bytes, b = sum of prefix sums, both mod 2^16
+    static int weak(byte[] buf, int off, int len) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < len; i++) {
+            a += buf[off + i] & 0xff;
+            b += (len - i) * (buf[off + i] & 0xff);
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    private static long strong(MessageDigest md5, byte[] block) {
+        byte[] d = md5.digest(block);
+        return ByteBuffer.wrap(d).getLong();
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.example;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class DhtContact {
+    private final String nodeId;
+    private final BigInteger id;
+    private volatile String ipAddress;
+    private volatile long lastSeen;
+    // RPCs lost in a row; any sign of life resets it
+    private int failures;
+
+    public DhtContact(String nodeId, String ip) {
+        this.nodeId = nodeId;
+        this.id = idFor(nodeId);
+        this.ipAddress = ip;
+        this.lastSeen = System.currentTimeMillis();
+    }
+
+    public static BigInteger idFor(String nodeId) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return new BigInteger(1, md.digest(nodeId.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static BigInteger keyFor(String fileHash) {
+        return new BigInteger(fileHash, 16);
+    }
+
+    // keys on the wire are always 40 hex digits, leading zeros included
+    public static String toKey(BigInteger id) {
+        return String.format("%040x", id);
+    }
+
+    // whether a key from the wire is one; anything else is never parsed
+    public static boolean isKey(String s) {
+        if (s == null || s.length() != 40) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) return false;
+        }
+        return true;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public BigInteger getId() {
+        return id;
+    }
+
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    void touch(String ip) {
+        this.ipAddress = ip;
+        this.lastSeen = System.currentTimeMillis();
+        this.failures = 0;
+    }
+
+    // guarded by the routing table
+    int recordFailure() {
+        return ++failures;
+    }
+
+    public BigInteger distanceTo(BigInteger target) {
+        return id.xor(target);
+    }
+}
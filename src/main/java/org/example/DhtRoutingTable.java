@@ -0,0 +1,129 @@
+package org.example;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+public class DhtRoutingTable {
+
+    public static final int ID_BITS = 160;
+
+    // contacts silent for longer than this may be evicted from a full bucket
+    private static final long STALE_CONTACT_MS = 15 * 60 * 1000;
+    // one lost UDP round trip proves little; a contact is dropped after this many in a row
+    private static final int MAX_FAILURES = 3;
+
+    private final BigInteger localId;
+    private final int bucketSize;
+    private final List<LinkedList<DhtContact>> buckets;
+    // per bucket: contacts that found it full, most recently seen at the tail; they fill the places of the dead
+    private final List<LinkedList<DhtContact>> replacements;
+    // node ids of bucket heads with a liveness ping out, so a busy bucket doesn't ping the same contact again
+    private final Set<String> pinging = new HashSet<>();
+
+    public DhtRoutingTable(BigInteger localId, int bucketSize) {
+        this.localId = localId;
+        this.bucketSize = bucketSize;
+        this.buckets = new ArrayList<>(ID_BITS);
+        this.replacements = new ArrayList<>(ID_BITS);
+        for (int i = 0; i < ID_BITS; i++) {
+            buckets.add(new LinkedList<>());
+            replacements.add(new LinkedList<>());
+        }
+    }
+
+    private int bucketIndex(BigInteger id) {
+        int bit = localId.xor(id).bitLength() - 1;
+        return Math.max(0, Math.min(ID_BITS - 1, bit));
+    }
+
+    // returns the least recently seen contact of a full bucket when it should be pinged to make room,
+    // otherwise null; the answer goes to onPingResult
+    public synchronized DhtContact observe(String nodeId, String ip) {
+        DhtContact incoming = new DhtContact(nodeId, ip);
+        if (incoming.getId().equals(localId)) {
+            return null;
+        }
+        int index = bucketIndex(incoming.getId());
+        LinkedList<DhtContact> bucket = buckets.get(index);
+        for (DhtContact c : bucket) {
+            if (c.getNodeId().equals(nodeId)) {
+                c.touch(ip);
+                // most recently seen contacts live at the tail
+                bucket.remove(c);
+                bucket.addLast(c);
+                return null;
+            }
+        }
+        if (bucket.size() < bucketSize) {
+            bucket.addLast(incoming);
+            return null;
+        }
+        DhtContact oldest = bucket.getFirst();
+        if (System.currentTimeMillis() - oldest.getLastSeen() > STALE_CONTACT_MS) {
+            bucket.removeFirst();
+            bucket.addLast(incoming);
+            return null;
+        }
+        // long-lived contacts are kept over new ones, but only while they still answer
+        LinkedList<DhtContact> spares = replacements.get(index);
+        spares.removeIf(c -> c.getNodeId().equals(nodeId));
+        spares.addLast(incoming);
+        if (spares.size() > bucketSize) {
+            spares.removeFirst();
+        }
+        return pinging.add(oldest.getNodeId()) ? oldest : null;
+    }
+
+    // an answer has already moved the contact to the tail through observe; silence makes room for a spare
+    public synchronized void onPingResult(String nodeId, boolean answered) {
+        pinging.remove(nodeId);
+        if (!answered) {
+            remove(nodeId);
+        }
+    }
+
+    // an RPC to the contact went unanswered
+    public synchronized void noteFailure(String nodeId) {
+        for (DhtContact c : buckets.get(bucketIndex(DhtContact.idFor(nodeId)))) {
+            if (c.getNodeId().equals(nodeId)) {
+                if (c.recordFailure() >= MAX_FAILURES) {
+                    remove(nodeId);
+                }
+                return;
+            }
+        }
+    }
+
+    public synchronized void remove(String nodeId) {
+        int index = bucketIndex(DhtContact.idFor(nodeId));
+        LinkedList<DhtContact> bucket = buckets.get(index);
+        if (bucket.removeIf(c -> c.getNodeId().equals(nodeId))) {
+            LinkedList<DhtContact> spares = replacements.get(index);
+            if (!spares.isEmpty()) {
+                bucket.addLast(spares.removeLast());
+            }
+        }
+    }
+
+    public synchronized List<DhtContact> closest(BigInteger target, int count) {
+        List<DhtContact> all = new ArrayList<>();
+        for (LinkedList<DhtContact> bucket : buckets) {
+            all.addAll(bucket);
+        }
+        all.sort(Comparator.comparing(c -> c.distanceTo(target)));
+        return all.size() > count ? new ArrayList<>(all.subList(0, count)) : all;
+    }
+
+    public synchronized int size() {
+        int n = 0;
+        for (LinkedList<DhtContact> bucket : buckets) {
+            n += bucket.size();
+        }
+        return n;
+    }
+}
@@ -2,149 +2,207 @@ package org.example;
 
 import java.io.IOException;
 import java.net.*;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class DiscoveryService implements Runnable {
+// Driven entirely by the transport's loop: datagrams and beacon timers arrive on the loop thread, and time is its clock.
+public class DiscoveryService {
+
+    public static final String DEFAULT_GROUP = "239.255.47.1";
+
+    // beacon interval backs off from MIN to MAX while membership is stable
+    private static final long MIN_BEACON_INTERVAL_MS = 1000;
+    private static final long MAX_BEACON_INTERVAL_MS = 30000;
+    private static final double BEACON_JITTER = 0.25;
+    // a newcomer should hear from every member within this window
+    private static final long CHURN_RESPONSE_WINDOW_MS = 500;
+    private static final long PEER_EXPIRY_MS = 4 * MAX_BEACON_INTERVAL_MS;
+    // the share summary rides on a beacon when it changed, when someone new may lack it, and every so often
+    private static final int SUMMARY_RESEND_BEACONS = 8;
+
+    private static volatile String cachedLocalIP;
 
     private volatile boolean running;
     private final int port;
     private final P2PNode node;
-    private DatagramSocket socket;
+    private final String groupAddress;
+    private Transport loop;
+    private volatile Transport.Endpoint channel;
+    private InetSocketAddress groupTarget;
     private final Set<String> seenPackets;
-    private final long broadcastIntervalMs = 5000;
+    private final Map<String, Long> memberLastSeen;
+
+    private long beaconIntervalMs = MIN_BEACON_INTERVAL_MS;
+    private long nextBeaconTime;
+    private int lastSentSummaryVersion = -1;
+    private boolean summaryWanted;
+    private int beaconsSinceSummary;
+    // a burst of share changes, like a folder download unpacking, queues one early beacon
+    private final AtomicBoolean summaryChangePending = new AtomicBoolean();
 
     public DiscoveryService(P2PNode node, int port) {
+        this(node, port, DEFAULT_GROUP);
+    }
+
+    public DiscoveryService(P2PNode node, int port, String groupAddress) {
         this.node = node;
         this.port = port;
-        this.seenPackets = new HashSet<>();
+        this.groupAddress = groupAddress;
+        this.seenPackets = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        this.memberLastSeen = new HashMap<>();
     }
 
-    @Override
-    public void run() {
+    public void start(Transport loop) throws IOException {
+        this.loop = loop;
+        InetAddress group = InetAddress.getByName(groupAddress);
+        groupTarget = new InetSocketAddress(group, port);
+        channel = loop.openGroup(port, group, this::onDatagram);
         running = true;
-        try {
-            socket = new DatagramSocket(port);
-            socket.setSoTimeout(2000);
-            System.out.println("[DiscoveryService] Listening on UDP port " + port);
-
-            long lastBroadcastTime = 0;
-
-            while (running) {
-                try {
-                    byte[] buf = new byte[4 * 1024];
-                    DatagramPacket dp = new DatagramPacket(buf, buf.length);
-                    socket.receive(dp);
-
-                    Packet pkt = Packet.fromBytes(dp.getData());
-                    String sourceKey = pkt.getNodeId() + ":" + pkt.getSeqNumber();
-                    if (!seenPackets.contains(sourceKey)) {
-                        seenPackets.add(sourceKey);
-
-                        if (pkt.getTtl() > 0) {
-                            node.handleIncomingPacket(pkt);
-                            if (shouldForward(pkt)) {
-                                pkt.setTtl(pkt.getTtl() - 1);
-                                forwardPacket(pkt);
-                            }
-                        }
-                    }
-
-                } catch (SocketTimeoutException e) {
-                    // no problemo
-                }
-
-                long now = System.currentTimeMillis();
-                if (now - lastBroadcastTime > broadcastIntervalMs) {
-                    broadcastHello();
-                    lastBroadcastTime = now;
-                }
-            }
+        System.out.println("[DiscoveryService] Listening on UDP port " + port + ", group=" + group.getHostAddress());
 
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
-            System.out.println("[DiscoveryService] Stopped.");
-        }
+        nextBeaconTime = loop.currentTimeMillis();
+        loop.schedule(this::onBeaconTimer, 0);
     }
 
-    private boolean shouldForward(Packet pkt) {
-        if (pkt.getTtl() <= 0) return false;
-        if (pkt.getSourceIP().equalsIgnoreCase(getLocalIP())) {
-            return false;
+    private void onDatagram(Packet pkt, InetSocketAddress from) {
+        if (!running) return;
+        node.fillFromDatagram(pkt, from);
+        String sourceKey = pkt.getNodeId() + ":" + pkt.getSeqNumber();
+        if (!seenPackets.add(sourceKey)) {
+            return;
         }
-
-        switch (pkt.getType()) {
-            case DISCOVERY:
-            case SEARCH:
-                return true;
-            default:
-                return false;
+        if (pkt.getTtl() > 0) {
+            if (pkt.getType() == Packet.PacketType.DISCOVERY) {
+                onMemberSeen(pkt.getNodeId());
+            }
+            node.handleIncomingPacket(pkt);
         }
     }
 
-    private void broadcastHello() {
-        try {
-            Packet pkt = new Packet(Packet.PacketType.DISCOVERY, 2, getLocalIP());
-            pkt.setMessage("Hello from " + getLocalIP());
-            pkt.setNodeId(node.getNodeId());
-            byte[] data = pkt.toBytes();
-
-            DatagramPacket dp = new DatagramPacket(data, data.length, InetAddress.getByName("172.20.10.15"), port
-            );
-            socket.send(dp);
+    // timers are never cancelled; a beacon timer that was superseded by an earlier one is a no-op
+    private void onBeaconTimer() {
+        if (!running) return;
+        long now = loop.currentTimeMillis();
+        if (now < nextBeaconTime) return;
+
+        broadcastHello();
+        beaconIntervalMs = Math.min(beaconIntervalMs * 2, MAX_BEACON_INTERVAL_MS);
+        long delay = jittered(beaconIntervalMs);
+        nextBeaconTime = now + delay;
+        loop.schedule(this::onBeaconTimer, delay);
+        expireMembers(now);
+    }
 
-            String key = pkt.getNodeId() + ":" + pkt.getSeqNumber();
-            seenPackets.add(key);
+    // also fed by the node for members it learned of some other way, so they expire like beaconing ones
+    void onMemberSeen(String memberId) {
+        if (memberId.equalsIgnoreCase(node.getNodeId())) {
+            return;
+        }
+        Long previous = memberLastSeen.put(memberId, loop.currentTimeMillis());
+        if (previous == null) {
+            summaryWanted = true;
+            onChurn();
+        }
+    }
 
-            System.out.println("[DiscoveryService] Sent HELLO seq=" + pkt.getSeqNumber());
+    private void expireMembers(long now) {
+        boolean changed = false;
+        Iterator<Map.Entry<String, Long>> it = memberLastSeen.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            if (now - e.getValue() > PEER_EXPIRY_MS) {
+                it.remove();
+                node.onPeerExpired(e.getKey());
+                changed = true;
+            }
+        }
+        if (changed) {
+            onChurn();
+        }
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    private void onChurn() {
+        beaconIntervalMs = MIN_BEACON_INTERVAL_MS;
+        long delay = ThreadLocalRandom.current().nextLong(CHURN_RESPONSE_WINDOW_MS);
+        long respondBy = loop.currentTimeMillis() + delay;
+        if (respondBy < nextBeaconTime) {
+            nextBeaconTime = respondBy;
+            loop.schedule(this::onBeaconTimer, delay);
         }
     }
 
-    private void forwardPacket(Packet pkt) {
-        try {
-            byte[] data = pkt.toBytes();
-            DatagramPacket dp = new DatagramPacket(
-                    data, data.length,
-                    InetAddress.getByName("172.20.10.15"), port
-            );
-            socket.send(dp);
+    // called from any thread when the shared files change; peers holding the old summary stop trusting it
+    // at the next beacon, and get the new one with it
+    public void onShareSummaryChanged() {
+        Transport l = loop;
+        if (l == null || !running || !summaryChangePending.compareAndSet(false, true)) return;
+        l.execute(() -> {
+            summaryChangePending.set(false);
+            if (running) onChurn();
+        });
+    }
 
-            String forwardKey = pkt.getNodeId() + ":" + pkt.getSeqNumber();
-            seenPackets.add(forwardKey);
+    private long jittered(long interval) {
+        double factor = 1.0 + ThreadLocalRandom.current().nextDouble(-BEACON_JITTER, BEACON_JITTER);
+        return (long) (interval * factor);
+    }
 
-            System.out.println("[DiscoveryService] Forwarded seq=" + pkt.getSeqNumber()
-                    + ", ttl=" + pkt.getTtl());
+    private void broadcastHello() {
+        Packet pkt = new Packet(Packet.PacketType.DISCOVERY, 1, getLocalIP());
+        ShareSummary summary = node.getShareSummary();
+        int version = summary.getVersion();
+        // the group is mixed, so beacons stay v1 and only advertise what this node can speak
+        pkt.setMessage("Hello from " + getLocalIP() + "\nbloom=" + version + "\nwire=" + node.getMaxWireVersion());
+        if (version != lastSentSummaryVersion || summaryWanted || ++beaconsSinceSummary >= SUMMARY_RESEND_BEACONS) {
+            // legacy peers ignore a DISCOVERY payload
+            pkt.setChunkData(summary.encode());
+            lastSentSummaryVersion = version;
+            summaryWanted = false;
+            beaconsSinceSummary = 0;
+        }
+        pkt.setNodeId(node.getNodeId());
+        sendToGroup(pkt);
+        System.out.println("[DiscoveryService] Sent HELLO seq=" + pkt.getSeqNumber()
+                + ", next in ~" + beaconIntervalMs + " ms");
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    public void sendToGroup(Packet pkt) {
+        Transport.Endpoint ch = channel;
+        if (!running || ch == null) {
+            return;
         }
+        seenPackets.add(pkt.getNodeId() + ":" + pkt.getSeqNumber());
+        ch.send(TraceEvents.encode(pkt, Packet.WIRE_V1, groupAddress), groupTarget);
     }
 
     public void stopDiscovery() {
         running = false;
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
-        }
+        System.out.println("[DiscoveryService] Stopped.");
     }
 
     public static String getEffectiveLocalIP() {
+        String ip = cachedLocalIP;
+        if (ip != null) {
+            return ip;
+        }
         try (Socket socket = new Socket()) {
             socket.connect(new InetSocketAddress("google.com", 80), 3000);
-            return socket.getLocalAddress().getHostAddress();
+            ip = socket.getLocalAddress().getHostAddress();
         } catch (IOException e) {
             System.err.println("Failed to connect google, fallback to loopback: " + e.getMessage());
-            return "127.0.0.1";
+            ip = "127.0.0.1";
         }
+        cachedLocalIP = ip;
+        return ip;
     }
 
     private String getLocalIP() {
-        return getEffectiveLocalIP();
+        return node.getLocalIP();
     }
 }
@@ -0,0 +1,102 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+// Read-only view of a download that may still be in progress. Reads block until their chunk arrives;
+// once the download completes they are served from the output file instead.
+public class DownloadChannel implements SeekableByteChannel {
+
+    private final DownloadManager dm;
+    private final long size;
+    private long position;
+    private FileChannel completed;
+    private volatile boolean open = true;
+
+    public DownloadChannel(DownloadManager dm) {
+        this.dm = dm;
+        this.size = dm.getFileSize();
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        if (position >= size) return -1;
+        if (!dst.hasRemaining()) return 0;
+
+        if (completed == null) {
+            int chunk = (int) (position / DownloadManager.CHUNK_SIZE);
+            byte[] data;
+            try {
+                data = dm.awaitChunk(chunk);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for chunk " + chunk, e);
+            }
+            if (data != null) {
+                int offset = (int) (position - (long) chunk * DownloadManager.CHUNK_SIZE);
+                int n = Math.min(dst.remaining(), data.length - offset);
+                dst.put(data, offset, n);
+                position += n;
+                return n;
+            }
+            File out = dm.getOutputFile();
+            if (out == null) {
+                throw new IOException("Download of " + dm.getFileHash() + " left no file to read");
+            }
+            completed = FileChannel.open(out.toPath(), StandardOpenOption.READ);
+        }
+        int n = completed.read(dst, position);
+        if (n > 0) position += n;
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        if (!open) throw new ClosedChannelException();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        if (newPosition < 0) throw new IllegalArgumentException("Negative position: " + newPosition);
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        if (!open) throw new ClosedChannelException();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long newSize) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        open = false;
+        if (completed != null) {
+            completed.close();
+        }
+    }
+}
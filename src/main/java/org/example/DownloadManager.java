@@ -3,9 +3,27 @@ package org.example;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class DownloadManager {
 
+    public enum State {
+        QUEUED, RUNNING, PAUSED, COMPLETED, FAILED, CANCELLED
+    }
+
     protected final P2PNode node;
     protected final String fileHash;
     protected final long fileSize;
@@ -14,11 +32,43 @@ public class DownloadManager {
     protected int totalChunks;
     protected byte[][] chunkBuffers;
     protected int chunksReceived;
-    protected boolean isDownloading;
+    protected volatile boolean isDownloading;
+    protected volatile boolean paused;
+    private volatile State state = State.QUEUED;
+    private volatile Future<?> task;
 
     private final String remotePeerIP;
+    private volatile long busyUntil;
+    protected final long[] requestedAt;
+    protected final String[] requestedFrom;
+    // Karn's rule: chunks that were asked for more than once never yield an RTT sample
+    protected final BitSet retransmitted = new BitSet();
+    protected volatile long lastProgressTime;
+    private int requestsInFlight;
+    // chunks the first pass has not asked for yet
+    private final BitSet unrequested = new BitSet();
+    // sequential mode: requests follow the streaming reader instead of running front to back once
+    private volatile boolean sequential;
+    private volatile int readerChunk;
+    private volatile File outputFile;
+    // an older local version of this file; blocks the source still has are copied instead of fetched
+    private volatile File deltaBase;
+    // chunks held so far, and what of that the swarm has already been told
+    protected final BitSet have = new BitSet();
+    private final BitSet announced = new BitSet();
+    private int haveRounds;
 
-    private static final int CHUNK_SIZE = 4 * 1024;
+    protected static final int CHUNK_SIZE = 4 * 1024;
+    // max requests in flight before the first pass waits for responses
+    protected static final int WINDOW = 64;
+    private static final int MAX_NACK_SPAN = 8 * 1024;
+    private static final long MAX_IDLE_MS = 15000;
+    // a delta that answers within this saves the whole transfer, so the first request waits for it that long
+    private static final long DELTA_HEAD_START_MS = 5000;
+    private static final long HAVE_INTERVAL_MS = 2000;
+    private static final int HAVE_PAGE_BITS = 8 * 1024;
+    // every few rounds the whole bitfield goes out again, for peers that joined since
+    private static final int FULL_HAVE_EVERY = 5;
 
     public DownloadManager(P2PNode node, String fileHash, long fileSize, File destFolder, String remotePeerIP) {
         this.node = node;
@@ -30,87 +80,703 @@ public class DownloadManager {
         if (this.totalChunks <= 0) this.totalChunks = 1;
 
         this.chunkBuffers = new byte[totalChunks][];
+        this.requestedAt = new long[totalChunks];
+        this.requestedFrom = new String[totalChunks];
         this.chunksReceived = 0;
         this.isDownloading = false;
     }
 
     public void startDownload() {
-        isDownloading = true;
+        if (!begin()) return;
         System.out.println("[DownloadManager] Start download hash=" + fileHash + ", size=" + fileSize + ", totalChunks=" + totalChunks + ", from=" + remotePeerIP);
 
-        for (int i = 0; i < totalChunks; i++) {
-            requestChunkWithRetry(i);
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        runTransfer(remotePeerIP);
+    }
+
+    // false if the download was cancelled before its task got to run
+    protected synchronized boolean begin() {
+        if (state != State.QUEUED) return false;
+        isDownloading = true;
+        state = paused ? State.PAUSED : State.RUNNING;
+        return true;
+    }
+
+    public void setTask(Future<?> task) {
+        this.task = task;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void setSequential(boolean sequential) {
+        this.sequential = sequential;
+    }
+
+    public boolean isSequential() {
+        return sequential;
+    }
+
+    public void setDeltaBase(File deltaBase) {
+        this.deltaBase = deltaBase;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    // set once the completed file is on disk and the in-memory chunks are gone
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    public synchronized double getProgress() {
+        return (chunksReceived * 100.0) / totalChunks;
+    }
+
+    public synchronized void pause() {
+        if (state != State.QUEUED && state != State.RUNNING) return;
+        paused = true;
+        if (state == State.RUNNING) state = State.PAUSED;
+        System.out.println("[DownloadManager] Paused hash=" + fileHash);
+    }
+
+    public synchronized void resume() {
+        if (!paused) return;
+        paused = false;
+        if (state == State.PAUSED) state = State.RUNNING;
+        lastProgressTime = System.currentTimeMillis();
+        notifyAll();
+        System.out.println("[DownloadManager] Resumed hash=" + fileHash);
+    }
+
+    public void cancel() {
+        synchronized (this) {
+            if (state == State.COMPLETED || state == State.FAILED || state == State.CANCELLED) return;
+            // already writing the output file
+            if (state != State.QUEUED && !isDownloading) return;
+            isDownloading = false;
+            state = State.CANCELLED;
+            notifyAll();
+            releaseBuffers();
+        }
+        Future<?> t = task;
+        if (t != null) {
+            t.cancel(true);
+        }
+        System.out.println("[DownloadManager] Cancelled hash=" + fileHash);
+        node.onDownloadEnded(fileHash);
+    }
+
+    // blocks the request path while paused; false once the download is over
+    protected boolean awaitNotPaused() throws InterruptedException {
+        synchronized (this) {
+            while (paused && isDownloading) {
+                wait();
             }
         }
+        return isDownloading;
     }
 
-    private void requestChunkWithRetry(int chunkIndex) {
-        final int MAX_RETRIES = 5;
-        final int RETRY_DELAY_MS = 1000;
+    protected void releaseBuffers() {
+        Arrays.fill(chunkBuffers, null);
+    }
 
-        for (int attempt = 1; attempt <= MAX_RETRIES; attempt++) {
-            node.requestChunk(remotePeerIP, fileHash, chunkIndex);
-            System.out.println("[DownloadManager] Requested chunk " + chunkIndex + ", attempt " + attempt);
+    // pipeline every missing request once, then recover losses with NACKs; chunks rebuilt from local data
+    // alongside are simply not asked for once they are in
+    protected void runTransfer(String manifestSourceIp) {
+        boolean fromLocal = !node.getChunkStore().isEmpty();
+        if (deltaBase != null || fromLocal) {
+            // the delta scan and the manifest are stop-and-wait exchanges; only the delta gets a short head start,
+            // after which the transfer runs alongside and simply skips whatever they fill in
+            CountDownLatch deltaDone = new CountDownLatch(1);
+            node.runTask(() -> {
+                try {
+                    prefillFromDelta(manifestSourceIp);
+                } finally {
+                    deltaDone.countDown();
+                }
+                if (fromLocal) prefillFromLocalChunks(manifestSourceIp);
+            });
+            if (deltaBase != null) {
+                try {
+                    deltaDone.await(DELTA_HEAD_START_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        lastProgressTime = System.currentTimeMillis();
+        synchronized (this) {
+            for (int i = 0; i < totalChunks; i++) {
+                if (chunkBuffers[i] == null && requestedAt[i] == 0) unrequested.set(i);
+            }
+        }
+        node.runLater(this::onHaveTimer, HAVE_INTERVAL_MS);
+
+        int i;
+        while (isDownloading && (i = nextToRequest()) >= 0) {
+            if (!waitForWindow()) return;
+            if (!acquireBandwidth(1)) return;
+            String peer = sourceFor(i);
+            markRequested(i, peer);
+            node.requestChunk(peer, fileHash, i);
+        }
+        recoverLosses();
+    }
 
-            try {
-                Thread.sleep(RETRY_DELAY_MS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    protected String sourceFor(int chunkIndex) {
+        return remotePeerIP;
+    }
+
+    protected List<String> sources() {
+        return Collections.singletonList(remotePeerIP);
+    }
+
+    // a single-source download stays with its peer; true if the source was new and will be used
+    public boolean addSource(String ip) {
+        return false;
+    }
+
+    // in sequential mode the pass jumps to wherever the reader is and wraps around behind it
+    private synchronized int nextToRequest() {
+        int from = sequential ? readerChunk : 0;
+        int i = unrequested.nextSetBit(from);
+        if (i < 0 && from > 0) {
+            i = unrequested.nextSetBit(0);
+        }
+        return i;
+    }
+
+    protected synchronized void markRequested(int chunkIndex, String peer) {
+        unrequested.clear(chunkIndex);
+        boolean again = requestedAt[chunkIndex] != 0;
+        if (again) {
+            retransmitted.set(chunkIndex);
+        }
+        TraceEvents.chunkRequested(fileHash, chunkIndex, peer, chunkLength(chunkIndex), again);
+        requestedAt[chunkIndex] = System.currentTimeMillis();
+        requestedFrom[chunkIndex] = peer;
+    }
+
+    private long chunkLength(int index) {
+        return Math.min(CHUNK_SIZE, fileSize - (long) index * CHUNK_SIZE);
+    }
+
+    // the NACK timer runs at the fastest source's RTO; slower sources are judged by their own
+    protected long nackIntervalMs() {
+        long interval = RttEstimator.MAX_RTO_MS;
+        for (String peer : sources()) {
+            interval = Math.min(interval, node.rttFor(peer).getRtoMs());
+        }
+        return interval;
+    }
+
+    public void onChunkResponse(String fromIp, int index, byte[] data) {
+        long sentAt;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            boolean valid = isDownloading && index >= 0 && index < totalChunks;
+            boolean sample = valid && chunkBuffers[index] == null
+                    && requestedAt[index] != 0 && !retransmitted.get(index) && fromIp.equals(requestedFrom[index]);
+            sentAt = sample ? requestedAt[index] : 0;
+            int size = (data != null) ? data.length : 0;
+            if (valid && chunkBuffers[index] != null) {
+                TraceEvents.chunkDuplicate(fileHash, index, fromIp, size);
+            } else if (valid) {
+                TraceEvents.chunkReceived(fileHash, index, fromIp, size, requestedAt[index] != 0 ? now - requestedAt[index] : 0);
             }
+        }
+        if (sentAt != 0) {
+            node.rttFor(fromIp).addSample(now - sentAt);
+        }
+        handleChunkData(index, data);
+    }
 
-            if (chunkBuffers[chunkIndex] != null) {
-                System.out.println("[DownloadManager] Chunk " + chunkIndex + " received.");
-                break;
+    private boolean waitForWindow() {
+        try {
+            long busyFor = busyUntil - System.currentTimeMillis();
+            if (busyFor > 0) {
+                Thread.sleep(busyFor);
             }
+            if (!awaitNotPaused()) return false;
+            synchronized (this) {
+                // a stalled window is not waited out forever; losses are picked up by the NACK rounds
+                long deadline = System.currentTimeMillis() + nackIntervalMs();
+                while (isDownloading && requestsInFlight >= WINDOW) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        requestsInFlight = 0;
+                        break;
+                    }
+                    wait(left);
+                }
+                requestsInFlight++;
+            }
+            return isDownloading;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
-            if (attempt == MAX_RETRIES) {
-                System.out.println("[DownloadManager] Failed to download chunk " + chunkIndex + " after " + MAX_RETRIES + " attempts.");
+    // the download thread only waits for the last chunk; NACK rounds run as network loop timers
+    private void recoverLosses() {
+        node.runLater(this::onNackTimer, nackIntervalMs());
+        try {
+            synchronized (this) {
+                while (isDownloading && chunksReceived < totalChunks) {
+                    wait(MAX_IDLE_MS);
+                    // backstop for when the loop is gone and no timer will fail the download
+                    if (!paused && System.currentTimeMillis() - lastProgressTime > 2 * MAX_IDLE_MS) {
+                        failDownload("network loop stopped");
+                    }
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        finalizeDownload();
+        if (getState() == State.COMPLETED && announcesHave()) {
+            // now a full seed: peers still holding a partial picture of us get the complete one
+            announceHave(true);
         }
     }
 
-    public synchronized void handleChunkData(int index, byte[] data) {
+    // false for content nobody else can ask for by hash
+    protected boolean announcesHave() {
+        return true;
+    }
+
+    private void onHaveTimer() {
+        if (!isDownloading || !announcesHave()) return;
+        announceHave(false);
+        node.runLater(this::onHaveTimer, HAVE_INTERVAL_MS);
+    }
+
+    // pages of the bitfield that gained chunks since the last round, or all non-empty pages on a full round
+    private void announceHave(boolean forceFull) {
+        Map<Integer, byte[]> pages = new LinkedHashMap<>();
+        synchronized (this) {
+            boolean full = forceFull || haveRounds++ % FULL_HAVE_EVERY == 0;
+            for (int base = 0; base < totalChunks; base += HAVE_PAGE_BITS) {
+                int end = Math.min(base + HAVE_PAGE_BITS, totalChunks);
+                BitSet page = have.get(base, end);
+                if (page.isEmpty()) continue;
+                if (!full) {
+                    BitSet fresh = (BitSet) page.clone();
+                    fresh.andNot(announced.get(base, end));
+                    if (fresh.isEmpty()) continue;
+                }
+                pages.put(base, page.toByteArray());
+            }
+            announced.or(have);
+        }
+        if (!pages.isEmpty()) {
+            node.announceHave(fileHash, fileSize, sources(), pages);
+        }
+    }
+
+    // partial serving: the chunk if this download already holds it, without copying
+    synchronized byte[] servableChunk(int index) {
+        if (!isDownloading || index < 0 || index >= totalChunks) return null;
+        return chunkBuffers[index];
+    }
+
+    synchronized boolean holdsChunk(int index) {
+        return isDownloading && index >= 0 && index < totalChunks && chunkBuffers[index] != null;
+    }
+
+    // the bitfield page around index, for answering a request this download cannot serve yet
+    synchronized byte[] havePage(int index) {
+        int base = havePageBase(index);
+        return have.get(base, Math.min(base + HAVE_PAGE_BITS, totalChunks)).toByteArray();
+    }
+
+    static int havePageBase(int index) {
+        return (index / HAVE_PAGE_BITS) * HAVE_PAGE_BITS;
+    }
+
+    // a peer reported chunks it holds, relative to base; only multi-source downloads can use it
+    public void onHave(String peerIp, int base, BitSet bits) {
+    }
+
+    // runs on the network loop: must never block, so bandwidth is only ever tried, not waited for
+    private void onNackTimer() {
         if (!isDownloading) return;
-        if (index < 0 || index >= totalChunks) {
-            System.out.println("[DownloadManager] Invalid chunk index: " + index);
+        long now = System.currentTimeMillis();
+        if (!paused) {
+            if (now - lastProgressTime > MAX_IDLE_MS) {
+                failDownload("no progress for " + MAX_IDLE_MS + " ms, missing "
+                        + (totalChunks - chunksReceived) + " chunk(s)");
+                return;
+            }
+            if (busyUntil <= now) {
+                sendNacks(now);
+            }
+        }
+        node.runLater(this::onNackTimer, nackIntervalMs());
+    }
+
+    // one compact bitmap per source listing the chunks it should (re)send
+    private void sendNacks(long now) {
+        Map<String, BitSet> missingBySource = new HashMap<>();
+        Map<String, Integer> baseBySource = new HashMap<>();
+        Map<String, Set<String>> timedOutBySource = new HashMap<>();
+        int budget = WINDOW;
+        int start = sequential ? readerChunk : 0;
+        synchronized (this) {
+            for (int n = 0; n < totalChunks && budget > 0; n++) {
+                int i = (start + n) % totalChunks;
+                if (chunkBuffers[i] != null) continue;
+                String previous = requestedFrom[i];
+                if (requestedAt[i] != 0 && now - requestedAt[i] < node.rttFor(previous).getRtoMs()) continue;
+                String peer = sourceFor(i);
+                int base = baseBySource.computeIfAbsent(peer, p -> -1);
+                if (base < 0) {
+                    base = i;
+                    baseBySource.put(peer, i);
+                }
+                // chunks behind a wrapped-around base wait for a later round
+                if (i < base || i - base >= MAX_NACK_SPAN) continue;
+                missingBySource.computeIfAbsent(peer, p -> new BitSet()).set(i - base);
+                if (requestedAt[i] != 0) {
+                    timedOutBySource.computeIfAbsent(peer, p -> new HashSet<>()).add(previous);
+                }
+                budget--;
+            }
+        }
+        for (Map.Entry<String, BitSet> e : missingBySource.entrySet()) {
+            String peer = e.getKey();
+            BitSet bits = e.getValue();
+            // out of budget this round: nothing is marked, so the same chunks come up next tick
+            if (!node.getDownloadScheduler().tryAcquire(fileHash, bits.cardinality() * CHUNK_SIZE)) return;
+            int base = baseBySource.get(peer);
+            for (int bit = bits.nextSetBit(0); bit >= 0; bit = bits.nextSetBit(bit + 1)) {
+                markRequested(base + bit, peer);
+            }
+            // a source that let chunks time out backs off until it delivers a fresh sample
+            for (String late : timedOutBySource.getOrDefault(peer, Collections.emptySet())) {
+                node.rttFor(late).onTimeout();
+            }
+            node.sendChunkNack(peer, fileHash, base, bits.toByteArray());
+            System.out.println("[DownloadManager] NACK " + bits.cardinality() + " chunk(s) from base " + base
+                    + " to " + peer);
+        }
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    // paces requests through the global scheduler; false means the download was interrupted
+    protected boolean acquireBandwidth(int chunks) {
+        try {
+            node.getDownloadScheduler().acquire(fileHash, chunks * CHUNK_SIZE);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public void onPeerBusy(String peerIp, int chunkIndex, long retryAfterMs) {
+        busyUntil = System.currentTimeMillis() + retryAfterMs;
+    }
+
+    protected synchronized void failDownload(String reason) {
+        if (!isDownloading) return;
+        isDownloading = false;
+        failClaimed(reason);
+    }
+
+    // for a download that already claimed completion and then could not finish it
+    protected synchronized void failClaimed(String reason) {
+        state = State.FAILED;
+        outputFile = null;
+        notifyAll();
+        releaseBuffers();
+        System.out.println("[DownloadManager] Download failed: hash=" + fileHash + " (" + reason + ")");
+        node.onDownloadEnded(fileHash);
+    }
+
+    // fills every wire chunk that can be rebuilt from content already held locally
+    protected void prefillFromLocalChunks(String manifestSourceIp) {
+        List<ChunkStore.ChunkRef> manifest = node.fetchManifest(manifestSourceIp, fileHash);
+        if (manifest == null) {
+            System.out.println("[DownloadManager] No chunk manifest from " + manifestSourceIp + ", fetching everything.");
+            return;
+        }
+        long manifestSize = 0;
+        for (ChunkStore.ChunkRef ref : manifest) {
+            manifestSize += ref.getLength();
+        }
+        if (manifestSize != fileSize) {
             return;
         }
 
-        if (chunkBuffers[index] == null) {
-            chunkBuffers[index] = data;
-            chunksReceived++;
-            System.out.println("[DownloadManager] Received chunk " + index + "/" + (totalChunks - 1));
+        // disk reads happen outside the monitor, so the network loop never waits on them; only the
+        // current wire chunk is held at a time
+        ChunkStore store = node.getChunkStore();
+        int prefilled = 0;
+        long offset = 0;
+        byte[] current = null;
+        boolean whole = true;
+        for (ChunkStore.ChunkRef ref : manifest) {
+            if (!isDownloading) return;
+            long refEnd = offset + ref.getLength();
+            int first = (int) (offset / CHUNK_SIZE);
+            int last = (int) ((refEnd - 1) / CHUNK_SIZE);
+            byte[] local = (!holdsAll(first, last) && store.hasChunk(ref.getHash()))
+                    ? store.readLocal(ref.getHash()) : null;
+            if (local != null && local.length != ref.getLength()) {
+                local = null;
+            }
+            long pos = offset;
+            while (pos < refEnd) {
+                int w = (int) (pos / CHUNK_SIZE);
+                long chunkStart = (long) w * CHUNK_SIZE;
+                long chunkEnd = Math.min(chunkStart + CHUNK_SIZE, fileSize);
+                if (pos == chunkStart) {
+                    current = new byte[(int) (chunkEnd - chunkStart)];
+                    whole = true;
+                }
+                int n = (int) (Math.min(chunkEnd, refEnd) - pos);
+                if (local != null) {
+                    System.arraycopy(local, (int) (pos - offset), current, (int) (pos - chunkStart), n);
+                } else {
+                    whole = false;
+                }
+                pos += n;
+                if (pos == chunkEnd && whole && storePrefilled(w, current)) {
+                    prefilled++;
+                }
+            }
+            offset = refEnd;
+        }
+        if (prefilled > 0) {
+            node.fireDownloadProgress(fileHash, getProgress());
+        }
+        System.out.println("[DownloadManager] Rebuilt " + prefilled + "/" + totalChunks
+                + " chunks from local data for hash=" + fileHash);
+    }
 
-            double percent = (chunksReceived * 100.0) / totalChunks;
-            node.getGuiRef().updateDownloadProgress(fileHash, percent);
+    // rsync-style: the source tells us where blocks of our old copy sit in the new file, every chunk those
+    // cover is read from disk and only the rest goes over the network
+    protected void prefillFromDelta(String sourceIp) {
+        File base = deltaBase;
+        if (base == null || !base.isFile()) {
+            return;
+        }
+        int blockSize = DeltaSync.blockSizeFor(base.length());
+        if (base.length() / blockSize > DeltaSync.MAX_BLOCKS) {
+            System.out.println("[DownloadManager] " + base.getName() + " is too large for a delta, fetching everything.");
+            return;
+        }
+        List<DeltaSync.Copy> copies;
+        try {
+            byte[] signatures = DeltaSync.sign(base, blockSize);
+            copies = node.fetchDelta(sourceIp, fileHash, blockSize, signatures);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (copies == null) {
+            System.out.println("[DownloadManager] No delta from " + sourceIp + ", fetching everything.");
+            return;
+        }
+
+        long baseBlocks = base.length() / blockSize;
+        TreeMap<Long, DeltaSync.Copy> byOffset = new TreeMap<>();
+        for (DeltaSync.Copy c : copies) {
+            long end = c.getTargetOffset() + (long) c.getCount() * blockSize;
+            if (c.getTargetOffset() < 0 || c.getCount() <= 0 || end > fileSize
+                    || c.getBaseBlock() < 0 || c.getBaseBlock() + (long) c.getCount() > baseBlocks) {
+                System.out.println("[DownloadManager] Ignoring delta with out-of-range copy for hash=" + fileHash);
+                return;
+            }
+            byOffset.put(c.getTargetOffset(), c);
+        }
 
-            if (chunksReceived == totalChunks) {
-                finalizeDownload();
+        int prefilled = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(base, "r")) {
+            for (int w = 0; w < totalChunks && isDownloading; w++) {
+                long chunkStart = (long) w * CHUNK_SIZE;
+                int len = (int) (Math.min(chunkStart + CHUNK_SIZE, fileSize) - chunkStart);
+                byte[] data = readCopied(raf, byOffset, blockSize, chunkStart, len);
+                if (data != null && storePrefilled(w, data)) {
+                    prefilled++;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("[DownloadManager] Copied " + prefilled + "/" + totalChunks + " chunks from "
+                + base.getName() + " for hash=" + fileHash);
+    }
+
+    // the target range, if copies cover all of it
+    private static byte[] readCopied(RandomAccessFile base, TreeMap<Long, DeltaSync.Copy> byOffset, int blockSize,
+                                     long start, int len) throws IOException {
+        byte[] data = new byte[len];
+        long pos = start;
+        long end = start + len;
+        while (pos < end) {
+            Map.Entry<Long, DeltaSync.Copy> e = byOffset.floorEntry(pos);
+            if (e == null) return null;
+            DeltaSync.Copy c = e.getValue();
+            long copyEnd = c.getTargetOffset() + (long) c.getCount() * blockSize;
+            if (copyEnd <= pos) return null;
+            int n = (int) (Math.min(end, copyEnd) - pos);
+            base.seek((long) c.getBaseBlock() * blockSize + (pos - c.getTargetOffset()));
+            base.readFully(data, (int) (pos - start), n);
+            pos += n;
+        }
+        return data;
+    }
+
+    // also runs alongside the request loop, so a prefilled chunk is taken out of it and may be the last one
+    private synchronized boolean storePrefilled(int index, byte[] data) {
+        if (!isDownloading || chunkBuffers[index] != null) return false;
+        chunkBuffers[index] = data;
+        chunksReceived++;
+        have.set(index);
+        unrequested.clear(index);
+        lastProgressTime = System.currentTimeMillis();
+        notifyAll();
+        return true;
+    }
+
+    private synchronized boolean holdsAll(int first, int last) {
+        return isDownloading && have.nextClearBit(first) > last;
+    }
+
+    // blocks a streaming reader until the chunk is here, asking for it ahead of everything else;
+    // null once the download completed and the data only lives in the output file
+    byte[] awaitChunk(int index) throws IOException, InterruptedException {
+        if (sequential) {
+            readerChunk = index;
+        }
+        synchronized (this) {
+            while (true) {
+                if (state == State.COMPLETED) return null;
+                if (state == State.FAILED || state == State.CANCELLED) {
+                    throw new IOException("Download " + state.name().toLowerCase() + ": " + fileHash);
+                }
+                byte[] data = chunkBuffers[index];
+                if (data != null) return data;
+                long wait = 100;
+                if (isDownloading && !paused) {
+                    String peer = (requestedFrom[index] != null) ? requestedFrom[index] : sourceFor(index);
+                    long rto = node.rttFor(peer).getRtoMs();
+                    if (System.currentTimeMillis() - requestedAt[index] >= rto) {
+                        // bypasses the window and the bandwidth budget: a reader is stalled on it
+                        peer = sourceFor(index);
+                        markRequested(index, peer);
+                        node.requestChunk(peer, fileHash, index);
+                    }
+                    wait = rto;
+                }
+                wait(wait);
             }
-        } else {
+        }
+    }
+
+    // records a chunk and wakes the request loop; false for duplicates and invalid indexes
+    protected synchronized boolean acceptChunk(int index, byte[] data) {
+        if (!isDownloading) return false;
+        if (index < 0 || index >= totalChunks) {
+            System.out.println("[DownloadManager] Invalid chunk index: " + index);
+            return false;
+        }
+        if (chunkBuffers[index] != null) {
             System.out.println("[DownloadManager] Duplicate chunk received: " + index);
+            return false;
         }
+        if (data == null || data.length != chunkLength(index)) {
+            // left missing, so the next NACK round asks for it again
+            System.out.println("[DownloadManager] Chunk " + index + " has the wrong length: "
+                    + (data == null ? "none" : data.length));
+            return false;
+        }
+        chunkBuffers[index] = data;
+        chunksReceived++;
+        have.set(index);
+        unrequested.clear(index);
+        if (requestsInFlight > 0) requestsInFlight--;
+        lastProgressTime = System.currentTimeMillis();
+        notifyAll();
+        return true;
     }
 
+    public synchronized void handleChunkData(int index, byte[] data) {
+        if (acceptChunk(index, data)) {
+            System.out.println("[DownloadManager] Received chunk " + index + "/" + (totalChunks - 1));
+
+            double percent = (chunksReceived * 100.0) / totalChunks;
+            node.fireDownloadProgress(fileHash, percent);
+        }
+    }
+
+    // runs on the download's own thread once every chunk is in, keeping disk writes off the network loop
     protected void finalizeDownload() {
+        File outFile = writeOutputFile();
+        if (outFile == null) return;
+        if (!node.onDownloadFinished(fileHash, outFile)) return;
+        System.out.println("[DownloadManager] Download complete: hash=" + fileHash);
+        node.fireDownloadProgress(fileHash, 100.0);
+    }
+
+    // false if the download already ended some other way; after this, nothing else touches the chunks
+    protected synchronized boolean claimCompletion() {
+        if (!isDownloading) return false;
         isDownloading = false;
+        return true;
+    }
+
+    // null if the download already ended some other way
+    protected File writeOutputFile() {
+        if (!claimCompletion()) return null;
         File outFile = new File(destinationFolder, fileHash + "_downloaded.dat");
 
         System.out.println("[DownloadManager] Writing to: " + outFile.getAbsolutePath());
         try (FileOutputStream fos = new FileOutputStream(outFile)) {
-            for (byte[] cdata : chunkBuffers) {
+            for (int i = 0; i < chunkBuffers.length; i++) {
+                byte[] cdata = chunkBuffers[i];
                 if (cdata != null) {
+                    TraceEvents.ChunkDiskWrite ev = new TraceEvents.ChunkDiskWrite();
+                    ev.begin();
                     fos.write(cdata);
+                    ev.end();
+                    if (ev.shouldCommit()) {
+                        ev.hash = fileHash;
+                        ev.chunkIndex = i;
+                        ev.peer = requestedFrom[i];
+                        ev.size = cdata.length;
+                        ev.commit();
+                    }
                 }
             }
         } catch (IOException e) {
             e.printStackTrace();
+            // a truncated file must never be handed out as the download
+            if (outFile.exists() && !outFile.delete()) {
+                System.err.println("[DownloadManager] Could not remove partial " + outFile);
+            }
+            failClaimed("writing " + outFile.getName() + ": " + e.getMessage());
+            return null;
         }
-        System.out.println("[DownloadManager] Download complete: hash=" + fileHash);
-        node.getGuiRef().updateDownloadProgress(fileHash, 100.0);
+        markCompleted(outFile);
+        return outFile;
+    }
+
+    // streaming readers keep using the chunks until the file is complete on disk
+    protected synchronized void markCompleted(File outFile) {
+        outputFile = outFile;
+        state = State.COMPLETED;
+        releaseBuffers();
+        notifyAll();
     }
 }
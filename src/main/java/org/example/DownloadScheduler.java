@@ -0,0 +1,136 @@
+package org.example;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+public class DownloadScheduler {
+
+    public static final int DEFAULT_MAX_ACTIVE = 3;
+    private static final int BURST_MS = 250;
+
+    private static class QueuedDownload {
+        final DownloadManager dm;
+        final int priority;
+        final long order;
+
+        QueuedDownload(DownloadManager dm, int priority, long order) {
+            this.dm = dm;
+            this.priority = priority;
+            this.order = order;
+        }
+    }
+
+    private final Consumer<DownloadManager> launcher;
+    private final PriorityQueue<QueuedDownload> queue = new PriorityQueue<>(
+            Comparator.comparingInt((QueuedDownload q) -> -q.priority).thenComparingLong(q -> q.order));
+    private final Set<String> active = new HashSet<>();
+    private final Map<String, TokenBucket> perDownload = new ConcurrentHashMap<>();
+    private final TokenBucket global = new TokenBucket(0, 1);
+    private long nextOrder;
+    private int maxActive = DEFAULT_MAX_ACTIVE;
+    private long perDownloadRate;
+
+    public DownloadScheduler(Consumer<DownloadManager> launcher) {
+        this.launcher = launcher;
+    }
+
+    public synchronized void setMaxActive(int maxActive) {
+        this.maxActive = Math.max(1, maxActive);
+        pump();
+    }
+
+    public synchronized int getMaxActive() {
+        return maxActive;
+    }
+
+    // bytes per second, 0 means unlimited
+    public void setGlobalRate(long bytesPerSec) {
+        global.setRate(bytesPerSec, burstFor(bytesPerSec));
+    }
+
+    public void setPerDownloadRate(long bytesPerSec) {
+        this.perDownloadRate = bytesPerSec;
+        for (TokenBucket b : perDownload.values()) {
+            b.setRate(bytesPerSec, burstFor(bytesPerSec));
+        }
+    }
+
+    public void setDownloadRate(String fileHash, long bytesPerSec) {
+        bucketFor(fileHash).setRate(bytesPerSec, burstFor(bytesPerSec));
+    }
+
+    private static long burstFor(long bytesPerSec) {
+        return Math.max(8 * 1024, bytesPerSec * BURST_MS / 1000);
+    }
+
+    private TokenBucket bucketFor(String fileHash) {
+        return perDownload.computeIfAbsent(fileHash,
+                h -> new TokenBucket(perDownloadRate, burstFor(perDownloadRate)));
+    }
+
+    public synchronized void submit(DownloadManager dm, int priority) {
+        queue.add(new QueuedDownload(dm, priority, nextOrder++));
+        System.out.println("[DownloadScheduler] Queued hash=" + dm.getFileHash() + " priority=" + priority
+                + " (active=" + active.size() + "/" + maxActive + ", queued=" + queue.size() + ")");
+        pump();
+    }
+
+    private void pump() {
+        while (active.size() < maxActive && !queue.isEmpty()) {
+            DownloadManager dm = queue.poll().dm;
+            active.add(dm.getFileHash());
+            launcher.accept(dm);
+        }
+    }
+
+    public synchronized void onFinished(String fileHash) {
+        queue.removeIf(q -> q.dm.getFileHash().equals(fileHash));
+        perDownload.remove(fileHash);
+        if (active.remove(fileHash)) {
+            pump();
+        }
+    }
+
+    // moves a still-queued download ahead of everything below the given priority
+    public synchronized void promote(String fileHash, int priority) {
+        QueuedDownload found = null;
+        for (QueuedDownload q : queue) {
+            if (q.dm.getFileHash().equals(fileHash)) {
+                found = q;
+                break;
+            }
+        }
+        if (found == null || found.priority >= priority) {
+            return;
+        }
+        queue.remove(found);
+        queue.add(new QueuedDownload(found.dm, priority, found.order));
+        System.out.println("[DownloadScheduler] Promoted hash=" + fileHash + " to priority=" + priority);
+        pump();
+    }
+
+    public synchronized boolean isQueued(String fileHash) {
+        for (QueuedDownload q : queue) {
+            if (q.dm.getFileHash().equals(fileHash)) return true;
+        }
+        return false;
+    }
+
+    // blocks the requesting download until both the global and its own budget allow the bytes
+    public void acquire(String fileHash, int bytes) throws InterruptedException {
+        global.acquire(bytes);
+        bucketFor(fileHash).acquire(bytes);
+    }
+
+    // non-blocking variant for the network loop; a refusal just means trying again on the next tick
+    public boolean tryAcquire(String fileHash, int bytes) {
+        TokenBucket own = bucketFor(fileHash);
+        if (global.isUnlimited() && own.isUnlimited()) return true;
+        if (!own.tryAcquire(bytes)) return false;
+        if (global.tryAcquire(bytes)) return true;
+        // the download's own budget must not drain while the global one holds it back
+        own.refund(bytes);
+        return false;
+    }
+}
@@ -0,0 +1,106 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+public class FileHasher {
+
+    // what one read of a file yields: the SHA-1 peers and the DHT know it by, and a CRC32C that never leaves
+    // this node and only tells a touched file from a changed one on a later scan
+    public static final class Digests {
+        private final HashKey sha1;
+        private final long checksum;
+
+        Digests(HashKey sha1, long checksum) {
+            this.sha1 = sha1;
+            this.checksum = checksum;
+        }
+
+        public HashKey getSha1() { return sha1; }
+        public long getChecksum() { return checksum; }
+    }
+
+    public interface ProgressListener {
+        void onProgress(File file, long bytesHashed, long totalBytes);
+    }
+
+    // files above this are hashed through memory-mapped windows, smaller ones through a direct buffer
+    private static final long MAP_THRESHOLD = 4L * 1024 * 1024;
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+    private static final int DIRECT_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> DIRECT_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE));
+
+    public static Digests hash(File file, ProgressListener listener) throws IOException {
+        MessageDigest md = sha1();
+        CRC32C crc = new CRC32C();
+        read(file, md, crc, listener);
+        return new Digests(new HashKey(md.digest()), crc.getValue());
+    }
+
+    // for content already in memory, in order; the buffers are left as they were
+    public static Digests hash(List<ByteBuffer> data) throws IOException {
+        MessageDigest md = sha1();
+        CRC32C crc = new CRC32C();
+        for (ByteBuffer b : data) {
+            update(md, crc, b);
+        }
+        return new Digests(new HashKey(md.digest()), crc.getValue());
+    }
+
+    private static MessageDigest sha1() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Digest not available: SHA-1", e);
+        }
+    }
+
+    // the CRC32C alone, at a fraction of what SHA-1 costs; enough to show a rescanned file is unchanged
+    public static long checksum(File file, ProgressListener listener) throws IOException {
+        CRC32C crc = new CRC32C();
+        read(file, null, crc, listener);
+        return crc.getValue();
+    }
+
+    private static void read(File file, MessageDigest md, CRC32C crc, ProgressListener listener) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > MAP_THRESHOLD) {
+                for (long pos = 0; pos < size; pos += MAP_WINDOW) {
+                    long len = Math.min(MAP_WINDOW, size - pos);
+                    MappedByteBuffer window = ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+                    update(md, crc, window);
+                    if (listener != null) {
+                        listener.onProgress(file, pos + len, size);
+                    }
+                }
+            } else {
+                ByteBuffer buf = DIRECT_BUFFER.get();
+                buf.clear();
+                while (ch.read(buf) != -1) {
+                    buf.flip();
+                    update(md, crc, buf);
+                    buf.clear();
+                }
+            }
+        }
+    }
+
+    // both consume the buffer they read, so each gets its own view of the same bytes
+    private static void update(MessageDigest md, CRC32C crc, ByteBuffer data) {
+        if (md != null) {
+            md.update(data.duplicate());
+        }
+        crc.update(data.duplicate());
+    }
+}
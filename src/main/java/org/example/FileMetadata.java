@@ -1,51 +1,89 @@
 package org.example;
 import java.io.File;
-import java.io.FileInputStream;
-import java.security.MessageDigest;
+import java.io.IOException;
 
 public class FileMetadata {
 
     private File file;
-    private String fileHash;
+    // SHA-1: what peers and the DHT know the file by
+    private HashKey hashKey;
+    // CRC32C from the same read; never leaves this node
+    private long checksum;
     private long fileSize;
+    private long lastModified;
 
     public FileMetadata(File f) {
+        this(f, null);
+    }
+
+    public FileMetadata(File f, FileHasher.ProgressListener listener) {
         this.file = f;
         this.fileSize = f.length();
-        this.fileHash = calculateHash(f);
+        this.lastModified = f.lastModified();
+        calculateHashes(f, listener);
+    }
+
+    private FileMetadata(File f, HashKey hashKey, long checksum, long fileSize, long lastModified) {
+        this.file = f;
+        this.hashKey = hashKey;
+        this.checksum = checksum;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
     }
 
-    private String calculateHash(File f) {
+    private void calculateHashes(File f, FileHasher.ProgressListener listener) {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            FileInputStream fis = new FileInputStream(f);
-            byte[] buffer = new byte[8192];
-            int read;
-            while ((read = fis.read(buffer)) != -1) {
-                md.update(buffer, 0, read);
-            }
-            fis.close();
+            FileHasher.Digests d = FileHasher.hash(f, listener);
+            hashKey = d.getSha1();
+            checksum = d.getChecksum();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-            byte[] digest = md.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b));
+    // a file seen on an earlier scan keeps its identity without being hashed again if it looks untouched, or if
+    // its CRC32C shows the content is the same
+    public static FileMetadata rescan(File f, FileMetadata previous, FileHasher.ProgressListener listener) {
+        long size = f.length();
+        long modified = f.lastModified();
+        if (previous == null || previous.hashKey == null || previous.fileSize != size) {
+            return new FileMetadata(f, listener);
+        }
+        if (previous.lastModified == modified) {
+            return previous;
+        }
+        try {
+            long checksum = FileHasher.checksum(f, listener);
+            if (checksum == previous.checksum) {
+                return new FileMetadata(f, previous.hashKey, checksum, size, modified);
             }
-            return sb.toString();
-        } catch (Exception e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
-        return null;
+        return new FileMetadata(f, listener);
+    }
+
+    // for a file just written from content that was hashed in memory
+    static FileMetadata ofWritten(File f, FileHasher.Digests digests) {
+        return new FileMetadata(f, digests.getSha1(), digests.getChecksum(), f.length(), f.lastModified());
     }
 
     public String getFileHash() {
-        return fileHash;
+        return (hashKey != null) ? hashKey.toHex() : null;
+    }
+
+    public HashKey getHashKey() {
+        return hashKey;
     }
 
     public long getFileSize() {
         return fileSize;
     }
 
+    public long getLastModified() {
+        return lastModified;
+    }
+
     public String getFileName() {
         return file.getName();
     }
@@ -0,0 +1,236 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// One job for a whole folder of a peer's share: lists it, then fetches every pack of small files and every large
+// file as parts through the node's download scheduler, and puts each file at its path under the target folder.
+public class FolderDownload {
+
+    public enum State {
+        LISTING, RUNNING, COMPLETED, FAILED
+    }
+
+    private final P2PNode node;
+    private final String sourceIp;
+    private final String folder;
+    private final File targetDir;
+    private volatile State state = State.LISTING;
+    // parts not finished yet, by file or pack hash
+    private final Set<String> pendingParts = new HashSet<>();
+    // large files: hash -> every path with that content
+    private final Map<String, List<FolderListing.Entry>> filesByHash = new LinkedHashMap<>();
+    // parts this job started; anything else it waits on belongs to another download and is copied, not moved
+    private final Set<String> ownParts = new HashSet<>();
+    private int filesTotal;
+    private int filesDone;
+    private int filesFailed;
+    private long bytesTotal;
+    private long bytesDone;
+    private long startedAt;
+
+    FolderDownload(P2PNode node, String sourceIp, String folder, File targetDir) {
+        this.node = node;
+        this.sourceIp = sourceIp;
+        this.folder = folder;
+        this.targetDir = targetDir;
+    }
+
+    public String getSourceIp() { return sourceIp; }
+    public String getFolder() { return folder; }
+    public File getTargetDir() { return targetDir; }
+    public State getState() { return state; }
+
+    public synchronized double getProgress() {
+        return (bytesTotal == 0) ? (state == State.COMPLETED ? 100.0 : 0.0) : bytesDone * 100.0 / bytesTotal;
+    }
+
+    public synchronized String getSummary() {
+        return filesDone + "/" + filesTotal + " file(s), " + filesFailed + " failed, "
+                + pendingParts.size() + " part(s) pending";
+    }
+
+    // runs on a worker thread: the listing is fetched page by page with blocking request/replies
+    void run() {
+        startedAt = System.currentTimeMillis();
+        List<FolderListing.Entry> entries = node.fetchFolderListing(sourceIp, folder);
+        if (entries == null) {
+            System.out.println("[FolderDownload] No listing of '" + folder + "' from " + sourceIp);
+            state = State.FAILED;
+            return;
+        }
+        Map<String, List<FolderListing.Entry>> packs = new LinkedHashMap<>();
+        Map<String, Long> packSizes = new LinkedHashMap<>();
+        List<FolderListing.Entry> local = new ArrayList<>();
+        synchronized (this) {
+            for (FolderListing.Entry e : entries) {
+                if (targetFor(e) == null) {
+                    System.out.println("[FolderDownload] Skipping unsafe path " + e.getPath());
+                    continue;
+                }
+                filesTotal++;
+                bytesTotal += e.getFileSize();
+                if (e.getPackHash() != null) {
+                    packs.computeIfAbsent(e.getPackHash(), k -> new ArrayList<>()).add(e);
+                    packSizes.merge(e.getPackHash(), e.getPackOffset() + e.getFileSize(), Math::max);
+                } else if (node.sharedFileFor(e.getFileHash()) != null) {
+                    local.add(e);
+                } else {
+                    filesByHash.computeIfAbsent(e.getFileHash(), k -> new ArrayList<>()).add(e);
+                }
+            }
+            pendingParts.addAll(packs.keySet());
+            pendingParts.addAll(filesByHash.keySet());
+            state = State.RUNNING;
+        }
+        System.out.println("[FolderDownload] '" + folder + "' from " + sourceIp + ": " + filesTotal + " file(s), "
+                + bytesTotal + " bytes in " + packs.size() + " pack(s) and " + filesByHash.size() + " large file(s)");
+
+        // content we already share is copied, not fetched
+        for (FolderListing.Entry e : local) {
+            File target = targetFor(e);
+            boolean ok = copy(node.sharedFileFor(e.getFileHash()), target);
+            onFileDone(e, ok);
+        }
+        Set<PeerInfo> source = Set.of(new PeerInfo(sourceIp, 0));
+        for (Map.Entry<String, List<FolderListing.Entry>> p : packs.entrySet()) {
+            String packHash = p.getKey();
+            PackDownloadManager dm = new PackDownloadManager(node, packHash, packSizes.get(packHash),
+                    targetDir, source, this, p.getValue());
+            startPart(packHash, dm);
+        }
+        for (Map.Entry<String, List<FolderListing.Entry>> f : filesByHash.entrySet()) {
+            String hash = f.getKey();
+            Set<PeerInfo> peers = new HashSet<>(node.getPeersForFile(hash));
+            peers.add(new PeerInfo(sourceIp, f.getValue().get(0).getFileSize()));
+            DownloadManager dm = new MultiSourceDownloadManager(node, hash, f.getValue().get(0).getFileSize(),
+                    node.getDestinationFolder(), peers);
+            startPart(hash, dm);
+        }
+        checkDone();
+    }
+
+    private void startPart(String hash, DownloadManager dm) {
+        synchronized (this) {
+            ownParts.add(hash);
+        }
+        if (!node.startFolderPart(this, dm)) {
+            // someone else is already downloading this content; its result is copied over when it finishes
+            synchronized (this) {
+                ownParts.remove(hash);
+            }
+            if (!node.awaitFolderPart(this, hash)) {
+                System.out.println("[FolderDownload] " + hash + " is already part of another folder download");
+                onPartEnded(hash, DownloadManager.State.FAILED);
+            }
+        }
+    }
+
+    // the file's place under the target folder, or null if the listed path would leave it
+    File targetFor(FolderListing.Entry e) {
+        Path root = targetDir.toPath().toAbsolutePath().normalize();
+        Path p = root.resolve(e.getPath()).normalize();
+        return (p.startsWith(root) && !p.equals(root)) ? p.toFile() : null;
+    }
+
+    // a finished large file: moved to its first path if this job downloaded it, checked against its hash and
+    // shared there, then copied to every other path; returns where the content now lives
+    File place(String hash, File downloaded) {
+        List<FolderListing.Entry> paths;
+        boolean own;
+        synchronized (this) {
+            paths = filesByHash.get(hash);
+            own = ownParts.contains(hash);
+        }
+        if (paths == null) {
+            return downloaded;
+        }
+        File home = downloaded;
+        boolean moved = own && move(downloaded, targetFor(paths.get(0)));
+        if (moved) home = targetFor(paths.get(0));
+        if (!node.shareFolderFile(hash, home)) {
+            // nothing is counted done that doesn't match the listing
+            for (FolderListing.Entry e : paths) {
+                onFileDone(e, false);
+            }
+            return home;
+        }
+        for (int i = 0; i < paths.size(); i++) {
+            boolean ok = (i == 0 && own) ? moved : copy(home, targetFor(paths.get(i)));
+            onFileDone(paths.get(i), ok);
+        }
+        return home;
+    }
+
+    // called by a pack download for each member it wrote and verified, or failed to
+    void onPackedFile(FolderListing.Entry e, boolean ok) {
+        onFileDone(e, ok);
+    }
+
+    private synchronized void onFileDone(FolderListing.Entry e, boolean ok) {
+        if (ok) {
+            filesDone++;
+            bytesDone += e.getFileSize();
+        } else {
+            filesFailed++;
+            System.out.println("[FolderDownload] Failed: " + e.getPath());
+        }
+    }
+
+    // every part ends here, whatever happened to it
+    void onPartEnded(String hash, DownloadManager.State partState) {
+        synchronized (this) {
+            if (!pendingParts.remove(hash)) return;
+            if (partState != DownloadManager.State.COMPLETED) {
+                List<FolderListing.Entry> paths = filesByHash.get(hash);
+                int lost = (paths != null) ? paths.size() : 0;
+                filesFailed += lost;
+                System.out.println("[FolderDownload] Part " + hash + " ended " + partState
+                        + (lost > 0 ? ", " + lost + " file(s) lost" : ""));
+            }
+        }
+        checkDone();
+    }
+
+    private void checkDone() {
+        synchronized (this) {
+            if (state != State.RUNNING || !pendingParts.isEmpty()) return;
+            // a pack that failed as a whole never reported its members
+            filesFailed = Math.max(filesFailed, filesTotal - filesDone);
+            state = (filesFailed == 0) ? State.COMPLETED : State.FAILED;
+        }
+        System.out.println("[FolderDownload] '" + folder + "' from " + sourceIp + " " + state + ": " + getSummary()
+                + " in " + (System.currentTimeMillis() - startedAt) + " ms -> " + targetDir.getAbsolutePath());
+    }
+
+    private static boolean move(File from, File to) {
+        try {
+            Files.createDirectories(to.toPath().getParent());
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static boolean copy(File from, File to) {
+        try {
+            Files.createDirectories(to.toPath().getParent());
+            Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The shared files under one folder, as a folder download sees them. Files below PACK_FILE_LIMIT are laid end to
+// end in packs: virtual objects that are fetched like one file, so a tree of small files costs a few full-chunk
+// downloads instead of one request cycle and one partial last chunk per file.
+public class FolderListing {
+
+    static final long PACK_FILE_LIMIT = 1024 * 1024;
+    // bounded because a download holds its chunks in memory until it completes
+    static final long PACK_TARGET_BYTES = 16 * 1024 * 1024;
+    private static final String NO_PACK = "-";
+
+    // path is relative to the listed folder, with '/' separators
+    public static class Entry {
+        private final String path;
+        private final String fileHash;
+        private final long fileSize;
+        private final String packHash;
+        private final long packOffset;
+
+        public Entry(String path, String fileHash, long fileSize, String packHash, long packOffset) {
+            this.path = path;
+            this.fileHash = fileHash;
+            this.fileSize = fileSize;
+            this.packHash = packHash;
+            this.packOffset = packOffset;
+        }
+
+        public String getPath() { return path; }
+        public String getFileHash() { return fileHash; }
+        public long getFileSize() { return fileSize; }
+        // null for a file that is downloaded on its own
+        public String getPackHash() { return packHash; }
+        public long getPackOffset() { return packOffset; }
+    }
+
+    static class Pack {
+        final String hash;
+        final File[] files;
+        final long[] offsets;
+        final long size;
+        volatile long touched = System.currentTimeMillis();
+
+        Pack(String hash, File[] files, long[] offsets, long size) {
+            this.hash = hash;
+            this.files = files;
+            this.offsets = offsets;
+            this.size = size;
+        }
+
+        // a chunk may span several member files; a member that shrank since listing reads as zeros,
+        // and the downloader's hash check rejects it
+        byte[] readChunk(int index, int chunkSize) throws IOException {
+            long start = (long) index * chunkSize;
+            if (start >= size) {
+                return new byte[0];
+            }
+            byte[] data = new byte[(int) Math.min(chunkSize, size - start)];
+            int m = Arrays.binarySearch(offsets, start);
+            if (m < 0) m = -m - 2;
+            long pos = start;
+            long end = start + data.length;
+            for (; m < files.length && pos < end; m++) {
+                long memberEnd = (m + 1 < files.length) ? offsets[m + 1] : size;
+                int n = (int) (Math.min(end, memberEnd) - pos);
+                if (n <= 0) continue;
+                try (RandomAccessFile raf = new RandomAccessFile(files[m], "r")) {
+                    raf.seek(pos - offsets[m]);
+                    int off = (int) (pos - start);
+                    int read = raf.read(data, off, n);
+                    while (read > 0 && read < n) {
+                        int more = raf.read(data, off + read, n - read);
+                        if (more < 0) break;
+                        read += more;
+                    }
+                }
+                pos += n;
+            }
+            return data;
+        }
+    }
+
+    private static class Found {
+        final String path;
+        final FileMetadata fm;
+
+        Found(String path, FileMetadata fm) {
+            this.path = path;
+            this.fm = fm;
+        }
+    }
+
+    private final String folder;
+    private final List<Entry> entries;
+    private final Map<String, Pack> packs;
+    private final long builtAt;
+
+    private FolderListing(String folder, List<Entry> entries, Map<String, Pack> packs, long builtAt) {
+        this.folder = folder;
+        this.entries = entries;
+        this.packs = packs;
+        this.builtAt = builtAt;
+    }
+
+    public String getFolder() { return folder; }
+    public List<Entry> getEntries() { return entries; }
+    Map<String, Pack> getPacks() { return packs; }
+    public long getBuiltAt() { return builtAt; }
+
+    // "" or "/" is the whole share; no leading or trailing separators otherwise
+    static String normalizeFolder(String folder) {
+        String f = folder.replace('\\', '/').trim();
+        while (f.startsWith("/")) f = f.substring(1);
+        while (f.endsWith("/")) f = f.substring(0, f.length() - 1);
+        return f;
+    }
+
+    // null for a file outside the root
+    static String relativePath(File root, File file) {
+        String r = root.getAbsoluteFile().toPath().normalize().toString();
+        String p = file.getAbsoluteFile().toPath().normalize().toString();
+        if (!p.startsWith(r + File.separator)) {
+            return null;
+        }
+        return p.substring(r.length() + 1).replace(File.separatorChar, '/');
+    }
+
+    static FolderListing build(File root, String folder, Collection<FileMetadata> shared, long now) {
+        String prefix = folder.isEmpty() ? "" : folder + "/";
+        List<Found> found = new ArrayList<>();
+        for (FileMetadata fm : shared) {
+            String rel = relativePath(root, fm.getFile());
+            if (rel == null || !rel.startsWith(prefix)) continue;
+            found.add(new Found(rel.substring(prefix.length()), fm));
+        }
+        // path order keeps the files of one directory together in the same pack
+        found.sort(Comparator.comparing(f -> f.path));
+
+        List<Entry> entries = new ArrayList<>(found.size());
+        Map<String, Pack> packs = new LinkedHashMap<>();
+        List<Found> open = new ArrayList<>();
+        long openSize = 0;
+        for (Found f : found) {
+            FileMetadata fm = f.fm;
+            if (fm.getFileSize() >= PACK_FILE_LIMIT) {
+                entries.add(new Entry(f.path, fm.getFileHash(), fm.getFileSize(), null, 0));
+                continue;
+            }
+            if (openSize + fm.getFileSize() > PACK_TARGET_BYTES && !open.isEmpty()) {
+                closePack(open, entries, packs);
+                open.clear();
+                openSize = 0;
+            }
+            open.add(f);
+            openSize += fm.getFileSize();
+        }
+        if (!open.isEmpty()) {
+            closePack(open, entries, packs);
+        }
+        return new FolderListing(folder, entries, packs, now);
+    }
+
+    // the pack's id hashes its members, so it looks like any other file hash on the wire
+    private static void closePack(List<Found> members, List<Entry> entries, Map<String, Pack> packs) {
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        sha1.update("pack\n".getBytes(StandardCharsets.UTF_8));
+        File[] files = new File[members.size()];
+        long[] offsets = new long[members.size()];
+        long offset = 0;
+        for (int i = 0; i < members.size(); i++) {
+            FileMetadata fm = members.get(i).fm;
+            sha1.update((fm.getFileHash() + " " + fm.getFileSize() + "\n").getBytes(StandardCharsets.UTF_8));
+            files[i] = fm.getFile();
+            offsets[i] = offset;
+            offset += fm.getFileSize();
+        }
+        String hash = new HashKey(sha1.digest()).toHex();
+        packs.put(hash, new Pack(hash, files, offsets, offset));
+        long at = 0;
+        for (Found f : members) {
+            FileMetadata fm = f.fm;
+            entries.add(new Entry(f.path, fm.getFileHash(), fm.getFileSize(), hash, at));
+            at += fm.getFileSize();
+        }
+    }
+
+    // "<total> <builtAt>\n" then "hash|size|pack|offset|path" lines from start, up to maxBytes;
+    // the path goes last so a '|' in a file name can't shift the other fields
+    String encodePage(int start, int maxBytes) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(entries.size()).append(' ').append(builtAt).append('\n');
+        for (int i = Math.max(0, start); i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            String line = e.fileHash + "|" + e.fileSize + "|" + (e.packHash != null ? e.packHash : NO_PACK) + "|"
+                    + e.packOffset + "|" + e.path + "\n";
+            // a page always makes progress, even past the budget
+            if (i > start && sb.length() + line.length() > maxBytes) break;
+            sb.append(line);
+        }
+        return sb.toString();
+    }
+
+    static Entry parseEntry(String line) {
+        String[] parts = line.split("\\|", 5);
+        if (parts.length < 5 || parts[4].isEmpty()) {
+            return null;
+        }
+        String pack = NO_PACK.equals(parts[2]) ? null : parts[2];
+        return new Entry(parts[4], parts[0], Long.parseLong(parts[1]), pack, Long.parseLong(parts[3]));
+    }
+}
@@ -0,0 +1,79 @@
+package org.example;
+
+import java.util.Arrays;
+
+public final class HashKey {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final byte[] bytes;
+    private final int hash;
+
+    public HashKey(byte[] bytes) {
+        this.bytes = bytes.clone();
+        this.hash = Arrays.hashCode(this.bytes);
+    }
+
+    public static HashKey fromHex(String hex) {
+        int len = hex.length();
+        if (len % 2 != 0) {
+            throw new IllegalArgumentException("Odd-length hash: " + hex);
+        }
+        byte[] out = new byte[len / 2];
+        for (int i = 0; i < out.length; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("Not a hex hash: " + hex);
+            }
+            out[i] = (byte) ((hi << 4) | lo);
+        }
+        return new HashKey(out);
+    }
+
+    // null instead of an exception, for hashes that arrive off the wire
+    public static HashKey tryFromHex(String hex) {
+        try {
+            return (hex == null || hex.isEmpty()) ? null : fromHex(hex);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int v = bytes[i] & 0xff;
+            out[2 * i] = HEX[v >>> 4];
+            out[2 * i + 1] = HEX[v & 0x0f];
+        }
+        return new String(out);
+    }
+
+    public String toHex() {
+        return toHex(bytes);
+    }
+
+    public byte[] toBytes() {
+        return bytes.clone();
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof HashKey && Arrays.equals(bytes, ((HashKey) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
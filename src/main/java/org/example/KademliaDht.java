@@ -0,0 +1,398 @@
+package org.example;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class KademliaDht {
+
+    private static final int K = 20;
+    private static final int ALPHA = 3;
+    private static final long RPC_TIMEOUT_MS = 800;
+    private static final long RECORD_TTL_MS = 60 * 60 * 1000;
+    private static final long REPUBLISH_INTERVAL_MS = 30 * 60 * 1000;
+    private static final int MAX_VALUES_PER_RESPONSE = 50;
+    // any peer may STORE, so what it can make this node hold is bounded
+    private static final int MAX_PROVIDERS_PER_KEY = 100;
+    private static final int MAX_RECORDS = 100_000;
+    private static final long SWEEP_INTERVAL_MS = 5 * 60 * 1000;
+
+    private final P2PNode node;
+    private final BigInteger localId;
+    private final DhtRoutingTable routingTable;
+    private final Map<Integer, PendingRpc> pendingRpcs = new ConcurrentHashMap<>();
+    // RPC ids are random so a reply can't be forged by guessing the next sequence number
+    private final SecureRandom rpcIds = new SecureRandom();
+    // key -> (provider ip -> record); mutated under its own lock so recordCount stays exact
+    private final Map<String, Map<String, StoredRecord>> records = new ConcurrentHashMap<>();
+    private int recordCount;
+    private volatile boolean running;
+
+    private static class PendingRpc {
+        final CompletableFuture<Packet> future = new CompletableFuture<>();
+        // only a reply from the contact the request went to completes it
+        final String ip;
+
+        PendingRpc(String ip) {
+            this.ip = ip;
+        }
+    }
+
+    private static class StoredRecord {
+        final String ip;
+        final long fileSize;
+        final long expiresAt;
+
+        StoredRecord(String ip, long fileSize) {
+            this.ip = ip;
+            this.fileSize = fileSize;
+            this.expiresAt = System.currentTimeMillis() + RECORD_TTL_MS;
+        }
+    }
+
+    public KademliaDht(P2PNode node) {
+        this.node = node;
+        this.localId = DhtContact.idFor(node.getNodeId());
+        this.routingTable = new DhtRoutingTable(localId, K);
+    }
+
+    public DhtRoutingTable getRoutingTable() {
+        return routingTable;
+    }
+
+    public void start(Collection<String> bootstrapIps) {
+        running = true;
+        for (String ip : bootstrapIps) {
+            sendRpc(Packet.PacketType.DHT_PING, ip, "");
+        }
+        node.runLater(this::onSweepTimer, SWEEP_INTERVAL_MS);
+    }
+
+    // completes with the PONG, or exceptionally once the RPC times out
+    public CompletableFuture<Packet> ping(String ip) {
+        return sendRpc(Packet.PacketType.DHT_PING, ip, "");
+    }
+
+    public void stop() {
+        running = false;
+        for (PendingRpc rpc : pendingRpcs.values()) {
+            rpc.future.cancel(true);
+        }
+        pendingRpcs.clear();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void publishLoop(Map<String, Long> hashesWithSize) {
+        // give discovery a moment to fill the routing table before the first round
+        sleepQuietly(2000);
+        while (running) {
+            lookupNodes(localId);
+            for (Map.Entry<String, Long> e : hashesWithSize.entrySet()) {
+                if (!running) break;
+                publish(e.getKey(), e.getValue());
+            }
+            System.out.println("[KademliaDht] Published " + hashesWithSize.size() + " record(s), routing table size="
+                    + routingTable.size());
+            sleepQuietly(REPUBLISH_INTERVAL_MS);
+        }
+    }
+
+    public void publish(String fileHash, long fileSize) {
+        BigInteger key = DhtContact.keyFor(fileHash);
+        storeLocally(fileHash, node.getLocalIP(), fileSize);
+        for (DhtContact c : lookupNodes(key)) {
+            Packet store = newRpc(Packet.PacketType.DHT_STORE, fileHash);
+            store.setFileSize(fileSize);
+            node.sendPacket(store, c.getIpAddress());
+        }
+    }
+
+    public Set<PeerInfo> findProviders(String fileHash) {
+        Set<PeerInfo> found = new HashSet<>();
+        collectLocal(fileHash, found);
+        iterativeLookup(DhtContact.keyFor(fileHash), fileHash, found);
+        System.out.println("[KademliaDht] Lookup hash=" + fileHash + " -> " + found.size() + " provider(s)");
+        return found;
+    }
+
+    public List<DhtContact> lookupNodes(BigInteger target) {
+        return iterativeLookup(target, null, null);
+    }
+
+    private List<DhtContact> iterativeLookup(BigInteger target, String valueKey, Set<PeerInfo> valuesOut) {
+        Map<String, DhtContact> shortlist = new HashMap<>();
+        for (DhtContact c : routingTable.closest(target, K)) {
+            shortlist.put(c.getNodeId(), c);
+        }
+        Set<String> queried = new HashSet<>();
+
+        while (running) {
+            List<DhtContact> candidates = new ArrayList<>(shortlist.values());
+            candidates.sort(Comparator.comparing(c -> c.distanceTo(target)));
+            if (candidates.size() > K) {
+                candidates = candidates.subList(0, K);
+            }
+            List<DhtContact> round = new ArrayList<>();
+            for (DhtContact c : candidates) {
+                if (!queried.contains(c.getNodeId())) {
+                    round.add(c);
+                    if (round.size() == ALPHA) break;
+                }
+            }
+            if (round.isEmpty()) {
+                break;
+            }
+
+            Map<DhtContact, CompletableFuture<Packet>> inFlight = new HashMap<>();
+            for (DhtContact c : round) {
+                queried.add(c.getNodeId());
+                Packet.PacketType type = (valueKey != null) ? Packet.PacketType.DHT_FIND_VALUE : Packet.PacketType.DHT_FIND_NODE;
+                String key = (valueKey != null) ? valueKey : DhtContact.toKey(target);
+                inFlight.put(c, sendRpc(type, c.getIpAddress(), key));
+            }
+
+            for (Map.Entry<DhtContact, CompletableFuture<Packet>> e : inFlight.entrySet()) {
+                Packet resp = await(e.getValue());
+                if (resp == null) {
+                    routingTable.noteFailure(e.getKey().getNodeId());
+                    shortlist.remove(e.getKey().getNodeId());
+                    continue;
+                }
+                if (resp.getType() == Packet.PacketType.DHT_VALUES && valuesOut != null) {
+                    parseValues(resp.getMessage(), valuesOut);
+                } else if (resp.getType() == Packet.PacketType.DHT_NODES) {
+                    for (DhtContact c : parseContacts(resp.getMessage())) {
+                        if (!c.getId().equals(localId)) {
+                            shortlist.putIfAbsent(c.getNodeId(), c);
+                        }
+                    }
+                }
+            }
+            if (valuesOut != null && !valuesOut.isEmpty()) {
+                break;
+            }
+        }
+
+        List<DhtContact> result = new ArrayList<>(shortlist.values());
+        result.removeIf(c -> !queried.contains(c.getNodeId()));
+        result.sort(Comparator.comparing(c -> c.distanceTo(target)));
+        return result.size() > K ? new ArrayList<>(result.subList(0, K)) : result;
+    }
+
+    private Packet await(CompletableFuture<Packet> f) {
+        try {
+            return f.get(RPC_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private Packet newRpc(Packet.PacketType type, String key) {
+        Packet p = new Packet(type, 1, node.getLocalIP());
+        p.setNodeId(node.getNodeId());
+        p.setFileHash(key);
+        return p;
+    }
+
+    private CompletableFuture<Packet> sendRpc(Packet.PacketType type, String ip, String key) {
+        Packet req = newRpc(type, key);
+        PendingRpc rpc = new PendingRpc(ip);
+        int rpcId;
+        do {
+            rpcId = rpcIds.nextInt();
+        } while (pendingRpcs.putIfAbsent(rpcId, rpc) != null);
+        req.setSeqNumber(rpcId);
+        int id = rpcId;
+        rpc.future.whenComplete((r, t) -> pendingRpcs.remove(id));
+        rpc.future.orTimeout(RPC_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        node.sendPacket(req, ip);
+        return rpc.future;
+    }
+
+    // the address the datagram came from; a v1 packet's own sourceIP is whatever the sender wrote
+    private static String senderIp(Packet pkt) {
+        return pkt.getDatagramIP().isEmpty() ? pkt.getSourceIP() : pkt.getDatagramIP();
+    }
+
+    // every packet that reaches the node refreshes its sender in the routing table; a relayed one names a node
+    // the datagram didn't come from, so it is left out
+    public void observe(Packet pkt) {
+        if (pkt.getNodeId() == null || pkt.getNodeId().isEmpty() || pkt.getSourceIP().isEmpty()
+                || !senderIp(pkt).equals(pkt.getSourceIP())) {
+            return;
+        }
+        DhtContact oldest = routingTable.observe(pkt.getNodeId(), pkt.getSourceIP());
+        if (oldest != null && running) {
+            // a ping cut short by stop() says nothing about the contact
+            ping(oldest.getIpAddress()).whenComplete((pong, err) ->
+                    routingTable.onPingResult(oldest.getNodeId(), err == null || !running));
+        }
+    }
+
+    public void handlePacket(Packet pkt) {
+        switch (pkt.getType()) {
+            case DHT_PING:
+                reply(pkt, Packet.PacketType.DHT_PONG, "");
+                break;
+            case DHT_FIND_NODE:
+                if (!DhtContact.isKey(pkt.getFileHash())) break;
+                reply(pkt, Packet.PacketType.DHT_NODES, encodeContacts(DhtContact.keyFor(pkt.getFileHash())));
+                break;
+            case DHT_FIND_VALUE:
+                if (!DhtContact.isKey(pkt.getFileHash())) break;
+                String values = encodeValues(pkt.getFileHash());
+                if (!values.isEmpty()) {
+                    reply(pkt, Packet.PacketType.DHT_VALUES, values);
+                } else {
+                    reply(pkt, Packet.PacketType.DHT_NODES, encodeContacts(DhtContact.keyFor(pkt.getFileHash())));
+                }
+                break;
+            case DHT_STORE:
+                if (!DhtContact.isKey(pkt.getFileHash())) break;
+                storeLocally(pkt.getFileHash(), senderIp(pkt), pkt.getFileSize());
+                break;
+            case DHT_PONG:
+            case DHT_NODES:
+            case DHT_VALUES:
+                PendingRpc rpc = pendingRpcs.get(pkt.getSeqNumber());
+                if (rpc != null && rpc.ip.equals(senderIp(pkt))) {
+                    rpc.future.complete(pkt);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void reply(Packet request, Packet.PacketType type, String message) {
+        Packet resp = new Packet(type, 1, node.getLocalIP());
+        resp.setSeqNumber(request.getSeqNumber());
+        resp.setNodeId(node.getNodeId());
+        resp.setFileHash(request.getFileHash());
+        resp.setMessage(message);
+        node.sendPacket(resp, senderIp(request));
+    }
+
+    private void storeLocally(String fileHash, String ip, long fileSize) {
+        boolean own = ip.equals(node.getLocalIP());
+        synchronized (records) {
+            Map<String, StoredRecord> byIp = records.get(fileHash);
+            if (byIp == null) {
+                if (!own && recordCount >= MAX_RECORDS) return;
+                byIp = new ConcurrentHashMap<>();
+                records.put(fileHash, byIp);
+            }
+            if (byIp.containsKey(ip)) {
+                byIp.put(ip, new StoredRecord(ip, fileSize));
+                return;
+            }
+            // the node's own records are never turned away
+            if (!own && (recordCount >= MAX_RECORDS || byIp.size() >= MAX_PROVIDERS_PER_KEY)) return;
+            byIp.put(ip, new StoredRecord(ip, fileSize));
+            recordCount++;
+        }
+    }
+
+    private void removeExpired(String fileHash, Map<String, StoredRecord> byIp, long now) {
+        synchronized (records) {
+            Iterator<StoredRecord> it = byIp.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().expiresAt < now) {
+                    it.remove();
+                    recordCount--;
+                }
+            }
+            if (byIp.isEmpty()) {
+                records.remove(fileHash, byIp);
+            }
+        }
+    }
+
+    private void onSweepTimer() {
+        if (!running) return;
+        node.runTask(this::sweepRecords);
+        node.runLater(this::onSweepTimer, SWEEP_INTERVAL_MS);
+    }
+
+    // keys nobody looks up again would otherwise keep their expired records forever
+    private void sweepRecords() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Map<String, StoredRecord>> e : records.entrySet()) {
+            removeExpired(e.getKey(), e.getValue(), now);
+        }
+    }
+
+    private void collectLocal(String fileHash, Set<PeerInfo> out) {
+        Map<String, StoredRecord> byIp = records.get(fileHash);
+        if (byIp == null) return;
+        removeExpired(fileHash, byIp, System.currentTimeMillis());
+        for (StoredRecord r : byIp.values()) {
+            if (!r.ip.equals(node.getLocalIP())) {
+                out.add(new PeerInfo(r.ip, r.fileSize));
+            }
+        }
+    }
+
+    private String encodeValues(String fileHash) {
+        Map<String, StoredRecord> byIp = records.get(fileHash);
+        if (byIp == null) return "";
+        removeExpired(fileHash, byIp, System.currentTimeMillis());
+        StringBuilder sb = new StringBuilder();
+        int n = 0;
+        for (StoredRecord r : byIp.values()) {
+            if (n++ == MAX_VALUES_PER_RESPONSE) break;
+            sb.append(r.ip).append("|").append(r.fileSize).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private void parseValues(String data, Set<PeerInfo> out) {
+        for (String line : data.split("\n")) {
+            String[] parts = line.split("\\|");
+            if (parts.length >= 2 && !parts[0].equals(node.getLocalIP())) {
+                try {
+                    out.add(new PeerInfo(parts[0], Long.parseLong(parts[1])));
+                } catch (NumberFormatException e) {
+                    // a malformed value from a peer is skipped
+                }
+            }
+        }
+    }
+
+    private String encodeContacts(BigInteger target) {
+        StringBuilder sb = new StringBuilder();
+        for (DhtContact c : routingTable.closest(target, K)) {
+            sb.append(c.getNodeId()).append("|").append(c.getIpAddress()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private List<DhtContact> parseContacts(String data) {
+        List<DhtContact> out = new ArrayList<>();
+        for (String line : data.split("\n")) {
+            String[] parts = line.split("\\|");
+            if (parts.length >= 2) {
+                out.add(new DhtContact(parts[0], parts[1]));
+            }
+        }
+        return out;
+    }
+
+    private void sleepQuietly(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
@@ -8,7 +8,7 @@ import java.io.File;
 import java.util.*;
 import java.util.List;
 
-public class MainApp extends JFrame {
+public class MainApp extends JFrame implements NodeListener {
 
     private JMenuBar menuBar;
     private JMenu menuFiles;
@@ -25,7 +25,7 @@ public class MainApp extends JFrame {
     private JTextField txtSearch;
     private JButton btnSearch;
     private JTable tblResults;
-    private DefaultTableModel tblModel;
+    private SearchResultsModel tblModel;
     private JTable tblDownloads;
     private DefaultTableModel downloadModel;
     private JButton btnDownload;
@@ -41,13 +41,14 @@ public class MainApp extends JFrame {
         setDefaultCloseOperation(EXIT_ON_CLOSE);
         setSize(900, 600);
         p2pNode = new P2PNode();
+        p2pNode.setStateFile(new File(System.getProperty("user.home"), ".p2p-node.state"));
         excludedSubfolders = new HashSet<>();
         excludedDownloadMasks = new ArrayList<>();
         downloadRowMap = new HashMap<>();
 
         initMenu();
         initLayout();
-        p2pNode.setGuiRef(this);
+        p2pNode.addListener(this);
     }
 
     private void initMenu() {
@@ -97,12 +98,9 @@ public class MainApp extends JFrame {
         topPanel.add(btnSearch);
         add(topPanel, BorderLayout.NORTH);
 
-        tblModel = new DefaultTableModel(new String[]{"File Name", "File Hash", "File Size"}, 0) {
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        tblModel = new SearchResultsModel();
         tblResults = new JTable(tblModel);
+        tblResults.setAutoCreateRowSorter(true);
         JScrollPane scrollResults = new JScrollPane(tblResults);
 
         downloadModel = new DefaultTableModel(new String[]{"File Hash", "Progress (%)"}, 0) {
@@ -211,6 +209,7 @@ public class MainApp extends JFrame {
     }
 
     private void onExit() {
+        tblModel.dispose();
         p2pNode.shutdown();
         dispose();
         System.exit(0);
@@ -231,29 +230,31 @@ public class MainApp extends JFrame {
             return;
         }
         clearSearchResults();
-        p2pNode.searchFile(query);
+        SearchQuery q = SearchQuery.fromUserInput(query);
+        // extension masks are applied by the responders; prefix and exact-name masks still only at download
+        for (String mask : excludedDownloadMasks) {
+            String m = mask.trim();
+            if (m.startsWith("*.") && m.indexOf('*', 1) < 0) {
+                q.excludeExtension(m);
+            }
+        }
+        p2pNode.search(q);
         JOptionPane.showMessageDialog(this,
                 "SEARCH packet sent for: " + query + "\nWaiting for responses...");
     }
 
     private void clearSearchResults() {
-        while (tblModel.getRowCount() > 0) {
-            tblModel.removeRow(0);
-        }
+        tblModel.clear();
     }
 
-    public void addSearchResults(String responseData) {
-        String[] lines = responseData.split("\n");
-        for (String line : lines) {
-            if (line.trim().isEmpty()) continue;
-            String[] parts = line.split("\\|");
-            if (parts.length >= 3) { // File name, hash, size
-                String fName = parts[0];
-                String fHash = parts[1];
-                String fSize = (parts.length >= 3) ? parts[2] : "?";
-                tblModel.addRow(new Object[]{fName, fHash, fSize});
-            }
-        }
+    @Override
+    public void onSearchResults(String fromIp, String responseData) {
+        tblModel.offer(fromIp, responseData);
+    }
+
+    @Override
+    public void onDownloadProgress(String fileHash, double percent) {
+        updateDownloadProgress(fileHash, percent);
     }
 
     private void onDownloadSelected() {
@@ -262,9 +263,9 @@ public class MainApp extends JFrame {
             JOptionPane.showMessageDialog(this, "Please select a row from results table.");
             return;
         }
-        String fileName = (String) tblModel.getValueAt(row, 0);
-        String fileHash = (String) tblModel.getValueAt(row, 1);
-        String fileSizeStr = (String) tblModel.getValueAt(row, 2);
+        SearchResultsModel.Result result = tblModel.getResult(tblResults.convertRowIndexToModel(row));
+        String fileName = result.getFileName();
+        String fileHash = result.getFileHash();
 
         if (matchesExcludeMask(fileName)) {
             JOptionPane.showMessageDialog(this,
@@ -272,12 +273,7 @@ public class MainApp extends JFrame {
             return;
         }
 
-        long size;
-        try {
-            size = Long.parseLong(fileSizeStr);
-        } catch (NumberFormatException ex) {
-            size = 2L * 1024L * 1024L;
-        }
+        long size = result.getFileSize();
 
         int newRow = downloadModel.getRowCount();
         downloadModel.addRow(new Object[]{ fileHash, "0.0" });
@@ -285,16 +281,17 @@ public class MainApp extends JFrame {
 
         Set<PeerInfo> peers = p2pNode.getPeersForFile(fileHash);
         if (peers.isEmpty()) {
+            p2pNode.downloadFile(fileHash, size);
             JOptionPane.showMessageDialog(this,
-                    "No peers found for: " + fileName + " (hash=" + fileHash + ")");
+                    "No known peers for: " + fileName + " (hash=" + fileHash + ")\nLooking up sources in the DHT...");
             return;
         }
 
-        PeerInfo chosenPeer = peers.iterator().next();
-
-        p2pNode.downloadFile(fileHash, size, false, Collections.singleton(chosenPeer));
+        // multi-source even with one peer, so sources learned by PEX can join the download
+        p2pNode.downloadFile(fileHash, size, true, peers);
 
-        JOptionPane.showMessageDialog(this, "Download started for: " + fileName + "\nHash=" + fileHash + "\nFrom=" + chosenPeer.getIpAddress());
+        JOptionPane.showMessageDialog(this, "Download started for: " + fileName + "\nHash=" + fileHash
+                + "\nFrom " + peers.size() + " peer(s)");
     }
 
     private boolean matchesExcludeMask(String fileName) {
@@ -1,15 +1,23 @@
 package org.example;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadLocalRandom;
 
 public class MultiSourceDownloadManager extends DownloadManager {
-    private final List<PeerInfo> peerList;
+    private static final int MAX_SOURCES = 32;
+
+    // grows while the download runs, as PEX reports more sources
+    private final CopyOnWriteArrayList<PeerInfo> peerList;
+    private final Map<String, Long> peerBusyUntil = new ConcurrentHashMap<>();
+    // chunks announced by partial sources; replaced, never mutated, so readers need no lock
+    private final Map<String, BitSet> peerHave = new ConcurrentHashMap<>();
     public MultiSourceDownloadManager(
             P2PNode node,
             String fileHash,
@@ -20,66 +28,110 @@ public class MultiSourceDownloadManager extends DownloadManager {
 
         super(node, fileHash, fileSize, destFolder, "MULTIPLE");
 
-        this.peerList = new ArrayList<>(peers);
+        this.peerList = new CopyOnWriteArrayList<>(peers);
     }
 
     @Override
     public void startDownload() {
-        isDownloading = true;
+        if (!begin()) return;
         System.out.println("[MultiSourceDM] Start multi-source download: " + "hash=" + fileHash + ", totalChunks=" + totalChunks + ", #peers=" + peerList.size());
 
-        for (int i = 0; i < totalChunks; i++) {
-            PeerInfo selectedPeer = pickRandomPeer();
-            System.out.println("[MultiSourceDM] Requesting chunk " + i
-                    + " from " + selectedPeer.getIpAddress());
+        runTransfer(peerList.get(0).getIpAddress());
+    }
 
-            node.requestChunk(selectedPeer.getIpAddress(), fileHash, i);
+    @Override
+    protected String sourceFor(int chunkIndex) {
+        return pickPeerFor(chunkIndex).getIpAddress();
+    }
 
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    @Override
+    protected List<String> sources() {
+        List<String> ips = new ArrayList<>();
+        for (PeerInfo p : peerList) {
+            ips.add(p.getIpAddress());
         }
+        return ips;
     }
 
     @Override
-    public synchronized void handleChunkData(int chunkIndex, byte[] data) {
-        if (!isDownloading) return;
-        if (chunkIndex < 0 || chunkIndex >= totalChunks) return;
+    public boolean addSource(String ip) {
+        State state = getState();
+        if (state != State.QUEUED && state != State.RUNNING && state != State.PAUSED) return false;
+        if (peerList.size() >= MAX_SOURCES) return false;
+        if (!peerList.addIfAbsent(new PeerInfo(ip, fileSize))) return false;
+        System.out.println("[MultiSourceDM] Added source " + ip + " (#peers=" + peerList.size() + ") hash=" + fileHash);
+        return true;
+    }
 
-        chunkBuffers[chunkIndex] = data;
-        chunksReceived++;
+    @Override
+    public void onHave(String peerIp, int base, BitSet bits) {
+        addSource(peerIp);
+        peerHave.compute(peerIp, (ip, old) -> {
+            BitSet merged = (old != null) ? (BitSet) old.clone() : new BitSet();
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                merged.set(base + i);
+            }
+            return merged;
+        });
+    }
+
+    // peers that never sent a HAVE are taken to be full seeds
+    private boolean mayHave(PeerInfo peer, int chunkIndex) {
+        BitSet bits = peerHave.get(peer.getIpAddress());
+        return bits == null || bits.get(chunkIndex);
+    }
+
+    @Override
+    public synchronized void handleChunkData(int chunkIndex, byte[] data) {
+        if (!acceptChunk(chunkIndex, data)) return;
 
         double percent = (chunksReceived * 100.0) / totalChunks;
         System.out.printf("[MultiSourceDM] chunk %d/%d (%.2f%%)\n",
                 chunksReceived, totalChunks, percent);
-
-        if (chunksReceived == totalChunks) {
-            finalizeDownload();
-        }
+        node.fireDownloadProgress(fileHash, percent);
     }
 
     @Override
     protected void finalizeDownload() {
-        isDownloading = false;
-
-        File outFile = new File(destinationFolder, fileHash + "_downloaded.dat");
-        System.out.println("[MultiSourceDM] Finalizing: " + outFile.getAbsolutePath());
-        try (FileOutputStream fos = new FileOutputStream(outFile)) {
-            for (byte[] chunk : chunkBuffers) {
-                if (chunk != null) {
-                    fos.write(chunk);
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        File outFile = writeOutputFile();
+        if (outFile == null) return;
+        if (!node.onDownloadFinished(fileHash, outFile)) return;
         System.out.println("[MultiSourceDM] Download complete, hash=" + fileHash);
+        node.fireDownloadProgress(fileHash, 100.0);
     }
 
-    private PeerInfo pickRandomPeer() {
-        int idx = ThreadLocalRandom.current().nextInt(peerList.size());
-        return peerList.get(idx);
+    @Override
+    public void onPeerBusy(String peerIp, int chunkIndex, long retryAfterMs) {
+        peerBusyUntil.put(peerIp, System.currentTimeMillis() + retryAfterMs);
+        // another idle source can take the chunk right away, otherwise wait out the busy period
+        boolean otherIdle = peerList.stream().anyMatch(p -> !p.getIpAddress().equals(peerIp) && !isBusy(p));
+        node.runLater(() -> {
+            if (!isDownloading || chunkIndex < 0 || chunkIndex >= totalChunks || chunkBuffers[chunkIndex] != null) {
+                return;
+            }
+            // bandwidth was already charged for the refused request
+            String peer = pickPeerFor(chunkIndex).getIpAddress();
+            markRequested(chunkIndex, peer);
+            node.requestChunk(peer, fileHash, chunkIndex);
+        }, otherIdle ? 0 : retryAfterMs);
+    }
+
+    private boolean isBusy(PeerInfo peer) {
+        Long until = peerBusyUntil.get(peer.getIpAddress());
+        return until != null && until > System.currentTimeMillis();
+    }
+
+    // random among idle peers holding the chunk, then busy ones holding it, then anyone
+    private PeerInfo pickPeerFor(int chunkIndex) {
+        List<PeerInfo> idle = new ArrayList<>();
+        List<PeerInfo> holders = new ArrayList<>();
+        for (PeerInfo p : peerList) {
+            if (!mayHave(p, chunkIndex)) continue;
+            holders.add(p);
+            if (!isBusy(p)) idle.add(p);
+        }
+        List<PeerInfo> candidates = !idle.isEmpty() ? idle : !holders.isEmpty() ? holders : peerList;
+        int idx = ThreadLocalRandom.current().nextInt(candidates.size());
+        return candidates.get(idx);
     }
 }
@@ -0,0 +1,423 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Single-threaded owner of both UDP ports. Receive, timer and send paths all run on the loop thread;
+// other threads only hand work over through lock-free queues.
+public class NetworkEventLoop implements Transport, Runnable {
+
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+    // kernel-side buffer, so bursts survive while the loop is busy dispatching
+    private static final int SOCKET_RECEIVE_BUFFER = 1024 * 1024;
+    // small packets to the same peer are packed into one datagram that stays under a typical MTU
+    private static final int MAX_DATAGRAM_BYTES = 1400;
+    private static final long BATCH_FLUSH_DELAY_MS = 2;
+
+    private static final class Outgoing {
+        final DatagramChannel channel;
+        final ByteBuffer data;
+        final InetSocketAddress target;
+
+        Outgoing(DatagramChannel channel, ByteBuffer data, InetSocketAddress target) {
+            this.channel = channel;
+            this.data = data;
+            this.target = target;
+        }
+    }
+
+    private static final class Batch {
+        final DatagramChannel channel;
+        final InetSocketAddress target;
+        final List<byte[]> packets = new ArrayList<>();
+        int bytes = Packet.HEADER_BYTES;
+
+        Batch(DatagramChannel channel, InetSocketAddress target) {
+            this.channel = channel;
+            this.target = target;
+        }
+    }
+
+    private static final class Timer {
+        final long dueAt;
+        final long order;
+        final Runnable task;
+
+        Timer(long dueAt, long order, Runnable task) {
+            this.dueAt = dueAt;
+            this.order = order;
+            this.task = task;
+        }
+    }
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Outgoing> sendQueue = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // loop-thread only
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(
+            (a, b) -> a.dueAt != b.dueAt ? Long.compare(a.dueAt, b.dueAt) : Long.compare(a.order, b.order));
+    // datagrams ready for the wire; the head stays here while the socket buffer is full
+    private final ArrayDeque<Outgoing> ready = new ArrayDeque<>();
+    private final Map<InetSocketAddress, Batch> batches = new HashMap<>();
+    private volatile boolean batching = true;
+    private volatile long packetsSent;
+    private volatile long datagramsSent;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    private long timerOrder;
+    private volatile boolean running;
+    private volatile Thread loopThread;
+    private Thread ownThread;
+
+    public NetworkEventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public Endpoint openUnicast(int port, DatagramHandler handler) throws IOException {
+        // no SO_REUSEADDR: a second process on the chunk port would silently take a share of our datagrams
+        DatagramChannel ch = DatagramChannel.open(StandardProtocolFamily.INET);
+        ch.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_RECEIVE_BUFFER);
+        ch.bind(new InetSocketAddress(port));
+        register(ch, handler);
+        return (data, target) -> send(ch, data, target);
+    }
+
+    // joins the multicast group, or enables broadcast when the address is not a multicast one
+    @Override
+    public Endpoint openGroup(int port, InetAddress group, DatagramHandler handler) throws IOException {
+        DatagramChannel ch = DatagramChannel.open(StandardProtocolFamily.INET);
+        ch.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        ch.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_RECEIVE_BUFFER);
+        ch.bind(new InetSocketAddress(port));
+        if (group.isMulticastAddress()) {
+            NetworkInterface nif = pickMulticastInterface();
+            ch.setOption(StandardSocketOptions.IP_MULTICAST_IF, nif);
+            ch.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+            ch.join(group, nif);
+        } else {
+            ch.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        }
+        register(ch, handler);
+        return (data, target) -> send(ch, data, target);
+    }
+
+    private static NetworkInterface pickMulticastInterface() throws IOException {
+        NetworkInterface nif = NetworkInterface.getByInetAddress(
+                InetAddress.getByName(DiscoveryService.getEffectiveLocalIP()));
+        if (nif != null && nif.supportsMulticast()) {
+            return nif;
+        }
+        Enumeration<NetworkInterface> all = NetworkInterface.getNetworkInterfaces();
+        NetworkInterface fallback = null;
+        while (all.hasMoreElements()) {
+            NetworkInterface candidate = all.nextElement();
+            if (!candidate.isUp() || !candidate.supportsMulticast()) continue;
+            if (!candidate.isLoopback()) return candidate;
+            fallback = candidate;
+        }
+        if (fallback == null) {
+            throw new IOException("No multicast-capable network interface");
+        }
+        return fallback;
+    }
+
+    private void register(DatagramChannel ch, DatagramHandler handler) throws IOException {
+        ch.configureBlocking(false);
+        // registration must happen on the loop thread once it is running
+        if (running && Thread.currentThread() != loopThread) {
+            execute(() -> {
+                try {
+                    ch.register(selector, SelectionKey.OP_READ, handler);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        } else {
+            ch.register(selector, SelectionKey.OP_READ, handler);
+        }
+    }
+
+    @Override
+    public void setBatching(boolean batching) {
+        this.batching = batching;
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    @Override
+    public long getDatagramsSent() {
+        return datagramsSent;
+    }
+
+    @Override
+    public boolean inLoop() {
+        return Thread.currentThread() == loopThread;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public String getLocalIP() {
+        return DiscoveryService.getEffectiveLocalIP();
+    }
+
+    private void send(DatagramChannel channel, byte[] data, InetSocketAddress target) {
+        sendQueue.add(new Outgoing(channel, ByteBuffer.wrap(data), target));
+        if (!inLoop()) {
+            wakeup();
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) {
+            wakeup();
+        }
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMs) {
+        long dueAt = System.currentTimeMillis() + Math.max(0, delayMs);
+        if (inLoop()) {
+            timers.add(new Timer(dueAt, timerOrder++, task));
+        } else {
+            execute(() -> timers.add(new Timer(dueAt, timerOrder++, task)));
+        }
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        loopThread = Thread.currentThread();
+        running = true;
+        System.out.println("[NetworkEventLoop] Started.");
+        while (running) {
+            try {
+                long timeout = nextTimeout();
+                if (timeout == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+                wakeupPending.set(false);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isReadable()) {
+                        drainReceives(key);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+                runTasks();
+                runTimers();
+                flushSends();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        closeAll();
+        System.out.println("[NetworkEventLoop] Stopped.");
+    }
+
+    private long nextTimeout() {
+        if (!tasks.isEmpty() || !sendQueue.isEmpty()) {
+            return 0;
+        }
+        Timer next = timers.peek();
+        if (next == null) {
+            return 1000;
+        }
+        long wait = next.dueAt - System.currentTimeMillis();
+        return wait <= 0 ? 0 : wait;
+    }
+
+    private void drainReceives(SelectionKey key) throws IOException {
+        DatagramChannel ch = (DatagramChannel) key.channel();
+        DatagramHandler handler = (DatagramHandler) key.attachment();
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress from = ch.receive(receiveBuffer);
+            if (from == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            byte[] data = new byte[receiveBuffer.remaining()];
+            receiveBuffer.get(data);
+            Packet pkt = TraceEvents.decode(data, ((InetSocketAddress) from).getAddress().getHostAddress());
+            if (pkt.getType() == Packet.PacketType.BATCH) {
+                for (Packet inner : pkt.unbatch()) {
+                    dispatch(handler, inner, (InetSocketAddress) from);
+                }
+            } else {
+                dispatch(handler, pkt, (InetSocketAddress) from);
+            }
+        }
+    }
+
+    private static void dispatch(DatagramHandler handler, Packet pkt, InetSocketAddress from) {
+        try {
+            handler.onDatagram(pkt, from);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void runTimers() {
+        long now = System.currentTimeMillis();
+        while (!timers.isEmpty() && timers.peek().dueAt <= now) {
+            Runnable task = timers.poll().task;
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void flushSends() {
+        Outgoing out;
+        while ((out = sendQueue.poll()) != null) {
+            packetsSent++;
+            if (batching && out.data.remaining() + 4 + Packet.HEADER_BYTES <= MAX_DATAGRAM_BYTES) {
+                addToBatch(out);
+            } else {
+                ready.add(out);
+            }
+        }
+        writeReady();
+    }
+
+    // the first small packet for a peer opens a batch; it leaves when full or when its deadline passes
+    private void addToBatch(Outgoing out) {
+        int size = out.data.remaining();
+        Batch batch = batches.get(out.target);
+        if (batch != null && (batch.channel != out.channel || batch.bytes + 4 + size > MAX_DATAGRAM_BYTES)) {
+            emitBatch(batch);
+            batch = null;
+        }
+        if (batch == null) {
+            Batch opened = new Batch(out.channel, out.target);
+            batches.put(out.target, opened);
+            schedule(() -> {
+                if (batches.get(opened.target) == opened) {
+                    emitBatch(opened);
+                }
+            }, BATCH_FLUSH_DELAY_MS);
+            batch = opened;
+        }
+        batch.packets.add(out.data.array());
+        batch.bytes += 4 + size;
+    }
+
+    private void emitBatch(Batch batch) {
+        batches.remove(batch.target);
+        // a lone packet goes out as itself, without the batch framing
+        byte[] data = (batch.packets.size() == 1) ? batch.packets.get(0) : Packet.toBatchBytes(batch.packets);
+        ready.add(new Outgoing(batch.channel, ByteBuffer.wrap(data), batch.target));
+    }
+
+    private void writeReady() {
+        Outgoing out;
+        while ((out = ready.peek()) != null) {
+            if (!out.channel.isOpen()) {
+                ready.poll();
+                continue;
+            }
+            int sent;
+            try {
+                sent = out.channel.send(out.data, out.target);
+            } catch (IOException e) {
+                System.err.println("[NetworkEventLoop] Send to " + out.target + " failed: " + e.getMessage());
+                ready.poll();
+                continue;
+            }
+            if (sent == 0) {
+                // retried once the selector reports the channel writable again
+                SelectionKey key = out.channel.keyFor(selector);
+                if (key != null && key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+            ready.poll();
+            datagramsSent++;
+        }
+    }
+
+    @Override
+    public void start() {
+        ownThread = new Thread(this, "NetworkEventLoop");
+        ownThread.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        Thread t = ownThread;
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join(1000);
+            } catch (InterruptedException e) {
+                //skip this.
+            }
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.example;
+
+import java.io.File;
+
+// Callbacks from a P2PNode. They arrive on network or download threads, so UI code must hop to its own thread.
+public interface NodeListener {
+
+    // raw SEARCH_RESPONSE body: one "name|hash|size" line per file
+    default void onSearchResults(String fromIp, String responseData) {
+    }
+
+    default void onDownloadProgress(String fileHash, double percent) {
+    }
+
+    default void onDownloadFinished(String fileHash, File outFile) {
+    }
+}
@@ -0,0 +1,122 @@
+package org.example;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+// Headless entry point for seed nodes: no AWT is ever loaded. Config keys (all optional except root):
+//   root, destination, exclude (comma-separated folders), discovery.group, dht.bootstrap (comma-separated IPs),
+//   download.maxActive, download.rate, download.perDownloadRate, download.sequential,
+//   upload.rate, upload.queuePerPeer, upload.queueTotal, cache.bytes, wire.maxVersion, batching, control.port,
+//   state.file (peers and file locations kept across restarts)
+public class P2PDaemon {
+
+    public static void main(String[] args) {
+        String configPath = (args.length > 0) ? args[0] : "p2p.properties";
+        Properties config = new Properties();
+        try (InputStream in = new FileInputStream(configPath)) {
+            config.load(in);
+        } catch (IOException e) {
+            System.err.println("[P2PDaemon] Cannot read config " + configPath + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        P2PNode node = new P2PNode();
+        try {
+            configure(node, config);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[P2PDaemon] Bad config: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        ControlServer control = new ControlServer(node,
+                Integer.parseInt(config.getProperty("control.port", String.valueOf(ControlServer.DEFAULT_PORT))));
+        node.addListener(control);
+        node.connect();
+        try {
+            control.open();
+        } catch (IOException e) {
+            System.err.println("[P2PDaemon] Control socket unavailable: " + e.getMessage());
+            node.shutdown();
+            System.exit(1);
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            control.stop();
+            node.shutdown();
+        }, "P2PDaemonShutdown"));
+        // the accept loop keeps the process alive until "shutdown" closes it
+        control.run();
+    }
+
+    static void configure(P2PNode node, Properties config) {
+        String root = config.getProperty("root");
+        if (root == null || !new File(root).isDirectory()) {
+            throw new IllegalArgumentException("'root' must name an existing folder");
+        }
+        node.setRootFolder(new File(root));
+        node.setDestinationFolder(new File(config.getProperty("destination", root)));
+
+        Set<File> excluded = new HashSet<>();
+        for (String f : list(config, "exclude")) {
+            excluded.add(new File(f));
+        }
+        node.setExcludedSubfolders(excluded);
+
+        if (config.containsKey("discovery.group")) {
+            node.setDiscoveryGroup(config.getProperty("discovery.group").trim());
+        }
+        node.setDhtBootstrapPeers(list(config, "dht.bootstrap"));
+        if (config.containsKey("state.file")) {
+            node.setStateFile(new File(config.getProperty("state.file").trim()));
+        }
+        if (config.containsKey("download.maxActive")) {
+            node.setMaxActiveDownloads(intValue(config, "download.maxActive"));
+        }
+        node.setDownloadRateLimit(longValue(config, "download.rate"));
+        node.setPerDownloadRateLimit(longValue(config, "download.perDownloadRate"));
+        node.setSequentialDownloads(Boolean.parseBoolean(config.getProperty("download.sequential", "false")));
+        node.setUploadRateLimit(longValue(config, "upload.rate"));
+        if (config.containsKey("upload.queuePerPeer") || config.containsKey("upload.queueTotal")) {
+            node.setUploadQueueLimits(
+                    Integer.parseInt(config.getProperty("upload.queuePerPeer",
+                            String.valueOf(UploadScheduler.DEFAULT_MAX_QUEUE_PER_PEER)).trim()),
+                    Integer.parseInt(config.getProperty("upload.queueTotal",
+                            String.valueOf(UploadScheduler.DEFAULT_MAX_QUEUED_TOTAL)).trim()));
+        }
+        if (config.containsKey("cache.bytes")) {
+            node.setChunkCacheCapacity(longValue(config, "cache.bytes"));
+        }
+        if (config.containsKey("wire.maxVersion")) {
+            node.setMaxWireVersion(intValue(config, "wire.maxVersion"));
+        }
+        node.setPacketBatching(Boolean.parseBoolean(config.getProperty("batching", "true")));
+    }
+
+    private static List<String> list(Properties config, String key) {
+        List<String> out = new ArrayList<>();
+        for (String part : config.getProperty(key, "").split(",")) {
+            if (!part.trim().isEmpty()) {
+                out.add(part.trim());
+            }
+        }
+        return out;
+    }
+
+    private static long longValue(Properties config, String key) {
+        return Long.parseLong(config.getProperty(key, "0").trim());
+    }
+
+    private static int intValue(Properties config, String key) {
+        return Integer.parseInt(config.getProperty(key).trim());
+    }
+}
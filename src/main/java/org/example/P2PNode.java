@@ -2,70 +2,276 @@ package org.example;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class P2PNode {
 
     private static final int CHUNK_SIZE = 4 * 1024;
+    private static final int MANIFEST_PAGE_SIZE = 80;
+    private static final long MANIFEST_TIMEOUT_MS = 1000;
+    // signature pages are acked one by one; the first page of copies waits for the source to scan the file
+    private static final int DELTA_SIGNATURES_PER_PAGE = 96;
+    private static final int DELTA_COPIES_PER_PAGE = 80;
+    private static final long DELTA_SCAN_TIMEOUT_MS = 60000;
+    private static final int MAX_DELTA_SESSIONS = 16;
+    // a download someone is reading from jumps ahead of ordinary queued downloads
+    private static final int STREAMING_PRIORITY = 100;
+    // peer exchange: a few other sources ride along on chunk traffic, at most once per peer and hash per interval
+    private static final String PEX_PREFIX = "pex=";
+    private static final int MAX_PEX_PEERS = 8;
+    private static final int MAX_HAVE_TARGETS = 16;
+    // all datagrams of one search reply together; past this, results are cut even under the query's limit
+    private static final int MAX_SEARCH_RESPONSE_BYTES = 32 * 1024;
+    // result lines per reply datagram, leaving the packet header and addresses room under a 1400-byte path MTU
+    private static final int MAX_SEARCH_DATAGRAM_BYTES = 1200;
+    private static final long STATE_SAVE_INTERVAL_MS = 60000;
+    // a listing is rebuilt for a new fetch once this old; its packs stay servable while chunks are asked of them
+    private static final long FOLDER_LISTING_TTL_MS = 60000;
+    private static final long PACK_IDLE_MS = 10 * 60 * 1000;
+    // folders are named by the requester, so neither kept listings nor builds may grow with what peers ask for
+    private static final int MAX_FOLDER_LISTINGS = 16;
+    private static final int MAX_FOLDER_LISTING_BUILDS = 2;
+    private static final int MAX_FOLDER_LISTING_WAITERS = 32;
+    private static final int MAX_FOLDER_PAGE_BYTES = 16 * 1024;
+    private static final long PEX_INTERVAL_MS = 5000;
 
     private File rootFolder;
     private File destinationFolder;
     private boolean isConnected;
     private String nodeId;
     private DiscoveryService discoveryService;
-    private Thread discoveryThread;
-    private DatagramSocket udpSocket;
+    private volatile Transport transport;
+    private volatile Transport.Endpoint chunkEndpoint;
+    private Transport.Factory transportFactory = NetworkEventLoop::new;
+    private boolean packetBatching = true;
     private final Set<PeerInfo> discoveredPeers = new HashSet<>();
     private final int discoveryPort = 55555;
     private final int chunkTransferPort = 55556;
+    private String discoveryGroup = DiscoveryService.DEFAULT_GROUP;
+    private final Map<String, String> peerNodeIps = new HashMap<>();
+    // what each peer advertised or spoke to us, and its node id for v2 packets that leave it out
+    private final Map<String, Integer> peerWireVersion = new ConcurrentHashMap<>();
+    private final Map<String, String> nodeIdByIp = new ConcurrentHashMap<>();
+    // what this node shares, as advertised in HELLO, and the latest summary each peer advertised
+    private final ShareSummary shareSummary = new ShareSummary();
+    private final Map<String, ShareSummary> peerSummaries = new ConcurrentHashMap<>();
+    private int maxWireVersion = Packet.WIRE_V2;
+    private boolean sequentialDownloads;
+    private KademliaDht dht;
+    private List<String> dhtBootstrapPeers = new ArrayList<>();
 
     private final Map<String, FileMetadata> sharedFiles;
-    private Map<String, DownloadManager> activeDownloads = new HashMap<>();
+    // every shared path, including copies of content sharedFiles already holds under another path
+    private final Map<File, FileMetadata> sharedPaths = new ConcurrentHashMap<>();
+    private final Map<String, DownloadManager> activeDownloads = new ConcurrentHashMap<>();
     private final Map<String, Set<PeerInfo>> filePeers = new HashMap<>();
     private final ExecutorService executor;
+    private final DownloadScheduler downloadScheduler;
+    private final UploadScheduler uploadScheduler;
+    private Thread uploadThread;
+    private final ChunkStore chunkStore = new ChunkStore();
+    private volatile ChunkCache chunkCache = new ChunkCache(ChunkCache.DEFAULT_CAPACITY_BYTES, CHUNK_SIZE);
+    private final Map<Integer, CompletableFuture<Packet>> pendingReplies = new ConcurrentHashMap<>();
+    private final Map<String, RttEstimator> peerRtt = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastPexSent = new ConcurrentHashMap<>();
+    // hash -> size of everything this node announces in the DHT; grows as downloads complete
+    private final Map<String, Long> dhtRecords = new ConcurrentHashMap<>();
+    // hash -> older local copy to sync against, taken by the next download of that hash
+    private final Map<String, File> deltaBases = new ConcurrentHashMap<>();
+    // requester|hash -> signatures being uploaded to us and the copies found for them
+    private final Map<String, DeltaSession> deltaSessions = new ConcurrentHashMap<>();
+    // folder -> listing served to folder downloads, least recently used first; guarded by itself
+    private final LinkedHashMap<String, FolderListing> folderListings = new LinkedHashMap<>(16, 0.75f, true);
+    // folder -> requests waiting for a listing being built; guarded by itself
+    private final Map<String, List<Packet>> folderListingBuilds = new HashMap<>();
+    // pack hash -> the small files it concatenates
+    private final Map<String, FolderListing.Pack> packs = new ConcurrentHashMap<>();
+    // file or pack hash -> the folder download waiting for it
+    private final Map<String, FolderDownload> folderParts = new ConcurrentHashMap<>();
+    private final List<FolderDownload> folderDownloads = new CopyOnWriteArrayList<>();
+    // peers, their stats and file locations from earlier runs; null when no state file is set
+    private volatile PeerCache peerCache;
+    private long connectedAt;
 
     private Set<File> excludedSubfolders;
-    private MainApp guiRef;
+    private final List<NodeListener> listeners = new CopyOnWriteArrayList<>();
 
     public P2PNode() {
         this.nodeId = UUID.randomUUID().toString();
-        this.sharedFiles = new HashMap<>();
-        this.activeDownloads = new HashMap<>();
-        this.executor = Executors.newCachedThreadPool();
+        this.sharedFiles = new ConcurrentHashMap<>();
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.downloadScheduler = new DownloadScheduler(dm -> dm.setTask(executor.submit(dm::startDownload)));
+        this.uploadScheduler = new UploadScheduler(this::serveChunkRequest);
         this.excludedSubfolders = new HashSet<>();
     }
 
-    public void setGuiRef(MainApp gui) {
-        this.guiRef = gui;
+    public void addListener(NodeListener listener) {
+        listeners.add(listener);
     }
 
-    public MainApp getGuiRef() {
-        return this.guiRef;
+    public void removeListener(NodeListener listener) {
+        listeners.remove(listener);
+    }
+
+    void fireDownloadProgress(String fileHash, double percent) {
+        for (NodeListener l : listeners) {
+            l.onDownloadProgress(fileHash, percent);
+        }
     }
 
     public String getNodeId() {
         return nodeId;
     }
 
+    // call before connect: adopts the node id stored there, or stores the current one for next time
+    public void setStateFile(File stateFile) {
+        PeerCache cache = new PeerCache(stateFile);
+        cache.load();
+        if (cache.getNodeId() != null) {
+            this.nodeId = cache.getNodeId();
+        } else {
+            cache.setNodeId(this.nodeId);
+        }
+        this.peerCache = cache;
+    }
+
+    // cached locations are usable at once; every cached peer is pinged in parallel and forgotten if it
+    // stays silent, so downloads started meanwhile simply lose a dead source
+    private void warmStart(KademliaDht d) {
+        PeerCache cache = peerCache;
+        if (cache == null) return;
+        List<PeerCache.LocationRecord> locations = cache.getLocations();
+        synchronized (filePeers) {
+            for (PeerCache.LocationRecord r : locations) {
+                filePeers.computeIfAbsent(r.getFileHash(), k -> new HashSet<>())
+                        .add(new PeerInfo(r.getIpAddress(), r.getFileSize()));
+            }
+        }
+        List<PeerCache.PeerRecord> peers = cache.getPeers();
+        for (PeerCache.PeerRecord p : peers) {
+            RttEstimator rtt = rttFor(p.getIpAddress());
+            if (p.getSrttMs() > 0 && rtt.getSampleCount() == 0) {
+                rtt.addSample(p.getSrttMs());
+            }
+            revalidate(d, p.getIpAddress(), 1);
+        }
+        System.out.println("[P2PNode] Warm start: " + locations.size() + " cached location(s), revalidating "
+                + peers.size() + " peer(s)");
+    }
+
+    private void revalidate(KademliaDht d, String ip, int retries) {
+        long sentAt = System.currentTimeMillis();
+        d.ping(ip).whenComplete((pong, err) -> runLater(() -> {
+            if (pong != null) {
+                onPeerRevalidated(ip, pong.getNodeId(), sentAt);
+            } else if (retries > 0 && d.isRunning()) {
+                revalidate(d, ip, retries - 1);
+            } else {
+                onPeerStale(ip);
+            }
+        }, 0));
+    }
+
+    private void onPeerRevalidated(String ip, String peerNodeId, long sentAt) {
+        rttFor(ip).addSample(System.currentTimeMillis() - sentAt);
+        synchronized (discoveredPeers) {
+            peerNodeIps.put(peerNodeId, ip);
+            discoveredPeers.add(new PeerInfo(ip, 0));
+        }
+        DiscoveryService ds = discoveryService;
+        if (ds != null) {
+            ds.onMemberSeen(peerNodeId);
+        }
+    }
+
+    private void onPeerStale(String ip) {
+        PeerCache cache = peerCache;
+        if (cache == null) return;
+        // heard from since we connected, so only the pings were lost
+        for (PeerCache.PeerRecord p : cache.getPeers()) {
+            if (p.getIpAddress().equals(ip) && p.getLastSeen() >= connectedAt) return;
+        }
+        cache.forgetPeer(ip);
+        synchronized (filePeers) {
+            for (Set<PeerInfo> holders : filePeers.values()) {
+                holders.remove(new PeerInfo(ip, 0));
+            }
+        }
+        System.out.println("[P2PNode] Cached peer " + ip + " did not answer, forgotten");
+    }
+
+    private void onStateTimer() {
+        executor.submit(this::saveState);
+        runLater(this::onStateTimer, STATE_SAVE_INTERVAL_MS);
+    }
+
+    private void saveState() {
+        PeerCache cache = peerCache;
+        if (cache == null) return;
+        for (Map.Entry<String, RttEstimator> e : peerRtt.entrySet()) {
+            cache.noteRtt(e.getKey(), e.getValue().getSrttMs());
+        }
+        cache.save();
+    }
+
+    // true if the peer was not known to hold the file yet
+    private boolean addFilePeer(String hash, String ip, long size) {
+        boolean added;
+        synchronized (filePeers) {
+            added = filePeers.computeIfAbsent(hash, k -> new HashSet<>()).add(new PeerInfo(ip, size));
+        }
+        PeerCache cache = peerCache;
+        if (cache != null) {
+            cache.noteLocation(hash, size, ip, System.currentTimeMillis());
+        }
+        return added;
+    }
+
     public synchronized void connect() {
         if (isConnected) return;
         System.out.println("[P2PNode] Connecting...");
 
         shareLocalFiles();
 
-        discoveryService = new DiscoveryService(this, discoveryPort);
-        discoveryThread = new Thread(discoveryService, "DiscoveryServiceThread");
-        discoveryThread.start();
-
+        // one loop thread owns both sockets plus all protocol timers
         try {
-            udpSocket = new DatagramSocket(chunkTransferPort);
-            executor.submit(this::chunkListener);
+            Transport t = transportFactory.create();
+            t.setBatching(packetBatching);
+            transport = t;
+            chunkEndpoint = t.openUnicast(chunkTransferPort, this::onChunkDatagram);
+            discoveryService = new DiscoveryService(this, discoveryPort, discoveryGroup);
+            discoveryService.start(t);
+            t.start();
+            System.out.println("[P2PNode] Chunk listener on port " + chunkTransferPort);
         } catch (Exception e) {
             e.printStackTrace();
         }
 
+        uploadThread = uploadScheduler.start();
+
+        dht = new KademliaDht(this);
+        dht.start(dhtBootstrapPeers);
+        connectedAt = System.currentTimeMillis();
+        warmStart(dht);
+        runLater(this::onStateTimer, STATE_SAVE_INTERVAL_MS);
+        dhtRecords.clear();
+        for (FileMetadata fm : sharedFiles.values()) {
+            dhtRecords.put(fm.getFileHash(), fm.getFileSize());
+        }
+        KademliaDht publisher = dht;
+        executor.submit(() -> publisher.publishLoop(dhtRecords));
+
         isConnected = true;
         System.out.println("[P2PNode] Connected.");
     }
@@ -74,20 +280,24 @@ public class P2PNode {
         if (!isConnected) return;
         System.out.println("[P2PNode] Disconnecting...");
 
+        if (dht != null) {
+            dht.stop();
+            dht = null;
+        }
+        saveState();
+        if (uploadThread != null) {
+            uploadScheduler.stop();
+            uploadThread.interrupt();
+            uploadThread = null;
+        }
         if (discoveryService != null) {
             discoveryService.stopDiscovery();
             discoveryService = null;
         }
-        if (discoveryThread != null) {
-            try {
-                discoveryThread.join(1000);
-            } catch (InterruptedException e) {
-                //skip this.
-            }
-            discoveryThread = null;
-        }
-        if (udpSocket != null && !udpSocket.isClosed()) {
-            udpSocket.close();
+        if (transport != null) {
+            transport.stop();
+            transport = null;
+            chunkEndpoint = null;
         }
 
         isConnected = false;
@@ -118,20 +328,107 @@ public class P2PNode {
         return destinationFolder;
     }
 
+    public void setDiscoveryGroup(String groupOrBroadcastAddress) {
+        this.discoveryGroup = groupOrBroadcastAddress;
+    }
+
+    public String getDiscoveryGroup() {
+        return discoveryGroup;
+    }
+
+    // Packet.WIRE_V1 keeps this node on the legacy format even with peers that offer v2
+    public void setMaxWireVersion(int version) {
+        this.maxWireVersion = version;
+    }
+
+    public int getMaxWireVersion() {
+        return maxWireVersion;
+    }
+
+    private int wireVersionFor(String ip) {
+        return Math.min(maxWireVersion, peerWireVersion.getOrDefault(ip, Packet.WIRE_V1));
+    }
+
+    private void notePeerWireVersion(String ip, int version) {
+        if (version > Packet.WIRE_V1 && !Integer.valueOf(version).equals(peerWireVersion.put(ip, version))) {
+            System.out.println("[P2PNode] Peer " + ip + " speaks wire v" + version);
+        }
+    }
+
+    // HELLO messages end with a "wire=N" line; legacy peers send none and stay on v1
+    private static int advertisedWireVersion(String message) {
+        int at = message.lastIndexOf("wire=");
+        if (at < 0) {
+            return Packet.WIRE_V1;
+        }
+        try {
+            return Integer.parseInt(message.substring(at + 5).trim());
+        } catch (NumberFormatException e) {
+            return Packet.WIRE_V1;
+        }
+    }
+
+    // batched datagrams are only understood by peers that know the BATCH packet type
+    public void setPacketBatching(boolean enabled) {
+        this.packetBatching = enabled;
+        Transport t = transport;
+        if (t != null) {
+            t.setBatching(enabled);
+        }
+    }
+
+    // e.g. SimulatedNetwork::newTransport bound to a virtual address; takes effect on the next connect
+    public void setTransportFactory(Transport.Factory factory) {
+        this.transportFactory = factory;
+    }
+
+    public void setUploadRateLimit(long bytesPerSec) {
+        uploadScheduler.setUploadRate(bytesPerSec);
+    }
+
+    public void setUploadQueueLimits(int perPeer, int total) {
+        uploadScheduler.setQueueLimits(perPeer, total);
+    }
+
+    public void setChunkCacheCapacity(long bytes) {
+        this.chunkCache = new ChunkCache(bytes, CHUNK_SIZE);
+    }
+
+    public ChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
+    ShareSummary getShareSummary() {
+        return shareSummary;
+    }
+
+    public void setDhtBootstrapPeers(List<String> ips) {
+        this.dhtBootstrapPeers = new ArrayList<>(ips);
+    }
+
     public void setExcludedSubfolders(Set<File> excluded) {
         this.excludedSubfolders = excluded;
     }
 
     private void shareLocalFiles() {
+        // what the last scan found, so files that did not change are not hashed again
+        Map<File, FileMetadata> previous = new HashMap<>(sharedPaths);
         sharedFiles.clear();
+        sharedPaths.clear();
+        shareSummary.clear();
         if (rootFolder == null || !rootFolder.isDirectory()) {
             System.err.println("[P2PNode] Root folder is invalid or not set.");
             return;
         }
-        shareLocalFilesRecursive(rootFolder);
+        shareLocalFilesRecursive(rootFolder, previous);
+        Set<String> hashes = new HashSet<>();
+        for (FileMetadata fm : sharedPaths.values()) {
+            hashes.add(fm.getFileHash());
+        }
+        chunkStore.retain(hashes, sharedPaths.keySet());
     }
 
-    private void shareLocalFilesRecursive(File dir) {
+    private void shareLocalFilesRecursive(File dir, Map<File, FileMetadata> previous) {
         if (isFolderExcluded(dir)) {
             return;
         }
@@ -139,16 +436,39 @@ public class P2PNode {
         if (files == null) return;
         for (File f : files) {
             if (f.isDirectory()) {
-                shareLocalFilesRecursive(f);
+                shareLocalFilesRecursive(f, previous);
             } else {
-                FileMetadata fm = new FileMetadata(f);
-                sharedFiles.put(fm.getFileHash(), fm);
+                FileMetadata fm = FileMetadata.rescan(f, previous.get(f), this::logHashProgress);
+                if (fm.getHashKey() == null) continue;
+                putSharedFile(fm);
+                // an unchanged file keeps the chunk index it already has
+                if (fm != previous.get(f) || chunkStore.getManifest(fm.getFileHash()) == null) {
+                    chunkStore.indexFile(fm.getFileHash(), f);
+                }
                 System.out.println("[P2PNode] Shared -> " + f.getAbsolutePath()
                         + " [hash=" + fm.getFileHash() + ", size=" + fm.getFileSize() + "]");
             }
         }
     }
 
+    // every change to sharedFiles goes through here, so the summary never misses a name
+    private void putSharedFile(FileMetadata fm) {
+        sharedPaths.put(fm.getFile(), fm);
+        FileMetadata previous = sharedFiles.put(fm.getFileHash(), fm);
+        if (previous != null) {
+            shareSummary.remove(previous.getFileName());
+        }
+        shareSummary.add(fm.getFileName());
+    }
+
+    private void logHashProgress(File f, long done, long total) {
+        System.out.printf("[P2PNode] Hashing %s: %d%%%n", f.getName(), done * 100 / total);
+    }
+
+    private FileMetadata sharedFile(String hash) {
+        return (hash != null) ? sharedFiles.get(hash) : null;
+    }
+
     private boolean isFolderExcluded(File dir) {
         for (File ex : excludedSubfolders) {
             if (dir.getAbsolutePath().startsWith(ex.getAbsolutePath())) {
@@ -168,6 +488,15 @@ public class P2PNode {
                 + " from=" + pkt.getSourceIP()
                 + " nodeId=" + pkt.getNodeId());
 
+        KademliaDht d = dht;
+        if (d != null) {
+            d.observe(pkt);
+        }
+        PeerCache cache = peerCache;
+        if (cache != null) {
+            cache.notePeer(pkt.getSourceIP(), System.currentTimeMillis());
+        }
+
         switch (pkt.getType()) {
             case DISCOVERY:
                 handleDiscovery(pkt);
@@ -189,6 +518,50 @@ public class P2PNode {
                 handleChunkResponse(pkt);
                 break;
 
+            case CHUNK_BUSY:
+                handleChunkBusy(pkt);
+                break;
+
+            case CHUNK_NACK:
+                handleChunkNack(pkt);
+                break;
+            case HAVE:
+                handleHave(pkt);
+                break;
+
+            case MANIFEST_REQUEST:
+                handleManifestRequest(pkt);
+                break;
+
+            case DELTA_REQUEST:
+                handleDeltaRequest(pkt);
+                break;
+
+            case FOLDER_LIST:
+                handleFolderListRequest(pkt);
+                break;
+
+            case MANIFEST_RESPONSE:
+            case DELTA_RESPONSE:
+            case FOLDER_LIST_RESPONSE:
+                CompletableFuture<Packet> pending = pendingReplies.remove(pkt.getSeqNumber());
+                if (pending != null) {
+                    pending.complete(pkt);
+                }
+                break;
+
+            case DHT_PING:
+            case DHT_PONG:
+            case DHT_FIND_NODE:
+            case DHT_NODES:
+            case DHT_STORE:
+            case DHT_FIND_VALUE:
+            case DHT_VALUES:
+                if (d != null) {
+                    d.handlePacket(pkt);
+                }
+                break;
+
             default:
                 break;
         }
@@ -201,7 +574,10 @@ public class P2PNode {
         if (sourceNodeId.equalsIgnoreCase(this.nodeId)) {
             return;
         }
+        notePeerWireVersion(sourceIP, advertisedWireVersion(pkt.getMessage()));
+        notePeerSummary(sourceIP, pkt);
         synchronized (discoveredPeers) {
+            peerNodeIps.put(sourceNodeId, sourceIP);
             boolean alreadyDiscovered = discoveredPeers.stream()
                     .anyMatch(peer -> peer.getIpAddress().equals(sourceIP));
             if (alreadyDiscovered) {
@@ -213,31 +589,93 @@ public class P2PNode {
         }
     }
 
+    // HELLO says "bloom=<version>" and carries the summary itself only now and then; a peer whose summary we
+    // lack or hold an older version of is searched like a legacy peer, never skipped
+    private void notePeerSummary(String ip, Packet pkt) {
+        String message = pkt.getMessage();
+        int at = message.indexOf("bloom=");
+        if (at < 0) {
+            peerSummaries.remove(ip);
+            return;
+        }
+        int end = message.indexOf('\n', at);
+        int version;
+        try {
+            version = Integer.parseInt(message.substring(at + 6, end < 0 ? message.length() : end).trim());
+        } catch (NumberFormatException e) {
+            peerSummaries.remove(ip);
+            return;
+        }
+        byte[] body = pkt.getChunkData();
+        if (body != null && body.length > 0) {
+            ShareSummary summary = ShareSummary.decode(body, version);
+            if (summary != null) {
+                peerSummaries.put(ip, summary);
+            } else {
+                peerSummaries.remove(ip);
+            }
+            return;
+        }
+        ShareSummary known = peerSummaries.get(ip);
+        if (known != null && known.getVersion() != version) {
+            peerSummaries.remove(ip);
+        }
+    }
+
+    public void onPeerExpired(String peerNodeId) {
+        synchronized (discoveredPeers) {
+            String ip = peerNodeIps.remove(peerNodeId);
+            if (ip == null || peerNodeIps.containsValue(ip)) {
+                return;
+            }
+            peerWireVersion.remove(ip);
+            peerSummaries.remove(ip);
+            nodeIdByIp.remove(ip);
+            discoveredPeers.removeIf(peer -> peer.getIpAddress().equals(ip));
+            System.out.println("[P2PNode] Peer expired: " + ip);
+        }
+    }
 
     private void handleSearchRequest(Packet pkt) {
         if (pkt.getSourceIP().equalsIgnoreCase(getLocalIP())) { return; }
-        String query = pkt.getMessage().toLowerCase();
-        List<FileMetadata> results = new ArrayList<>();
-        for (FileMetadata fm : sharedFiles.values()) {
-            if (fm.getFileName().toLowerCase().contains(query)) {
-                results.add(fm);
+        SearchQuery query = SearchQuery.fromWire(pkt.getMessage());
+        int limit = query.effectiveLimit();
+        StringBuilder sb = new StringBuilder();
+        int pageBytes = 0;
+        int totalBytes = 0;
+        int results = 0;
+        // flooded and legacy queries still reach every node; the summary turns most of them away without a scan
+        Collection<FileMetadata> candidates = shareSummary.mightMatch(query) ? sharedFiles.values() : List.of();
+        for (FileMetadata fm : candidates) {
+            if (!query.matches(fm.getFileName(), fm.getFileSize())) continue;
+            String line = fm.getFileName() + "|" + fm.getFileHash() + "|" + fm.getFileSize() + "\n";
+            int lineBytes = line.getBytes(StandardCharsets.UTF_8).length;
+            if (results >= limit || totalBytes + lineBytes > MAX_SEARCH_RESPONSE_BYTES) break;
+            // every datagram is a complete reply on its own, so older nodes take the pages as separate answers
+            if (pageBytes > 0 && pageBytes + lineBytes > MAX_SEARCH_DATAGRAM_BYTES) {
+                sendSearchPage(pkt.getSourceIP(), sb.toString());
+                sb.setLength(0);
+                pageBytes = 0;
             }
+            sb.append(line);
+            pageBytes += lineBytes;
+            totalBytes += lineBytes;
+            results++;
         }
-        if (!results.isEmpty()) {
-            StringBuilder sb = new StringBuilder();
-            for (FileMetadata fm : results) {
-                sb.append(fm.getFileName()).append("|")
-                        .append(fm.getFileHash()).append("|")
-                        .append(fm.getFileSize()).append("\n");
-            }
-            Packet resp = new Packet(Packet.PacketType.SEARCH_RESPONSE, 1, getLocalIP());
-            resp.setMessage(sb.toString());
-            resp.setSeqNumber(Packet.getNextSeqNumber());
-            resp.setNodeId(this.nodeId);
-            sendUDP(resp, pkt.getSourceIP(), discoveryPort);
+        TraceEvents.search("received", query.toString(), pkt.getSourceIP(), results, totalBytes);
+        if (pageBytes > 0) {
+            sendSearchPage(pkt.getSourceIP(), sb.toString());
         }
     }
 
+    private void sendSearchPage(String ip, String lines) {
+        Packet resp = new Packet(Packet.PacketType.SEARCH_RESPONSE, 1, getLocalIP());
+        resp.setMessage(lines);
+        resp.setSeqNumber(Packet.getNextSeqNumber());
+        resp.setNodeId(this.nodeId);
+        sendUDP(resp, ip, discoveryPort);
+    }
+
     private void handleSearchResponse(Packet pkt) {
 
         String data = pkt.getMessage();
@@ -250,32 +688,114 @@ public class P2PNode {
                 String fHash = parts[1];
                 long fSize = Long.parseLong(parts[2]);
 
-                Set<PeerInfo> peers = filePeers.getOrDefault(fHash, new HashSet<>());
-                peers.add(new PeerInfo(pkt.getSourceIP(), fSize));
-                filePeers.put(fHash, peers);
+                addFilePeer(fHash, pkt.getSourceIP(), fSize);
             }
         }
-        if (guiRef != null) {
-            guiRef.addSearchResults(data);
+        for (NodeListener l : listeners) {
+            l.onSearchResults(pkt.getSourceIP(), data);
         }
     }
 
     private void handleChunkRequest(Packet pkt) {
         String hash = pkt.getFileHash();
-        int chunkIndex = pkt.getChunkIndex();
-        FileMetadata fm = sharedFiles.get(hash);
-        if (fm == null) {
-            System.out.println("[P2PNode] We don't have file with hash=" + hash);
+        absorbPex(hash, pkt.getMessage(), 0);
+        if (sharedFile(hash) == null && !packs.containsKey(hash)) {
+            DownloadManager dm = activeDownloads.get(hash);
+            if (dm == null) {
+                System.out.println("[P2PNode] We don't have file with hash=" + hash);
+                return;
+            }
+            if (!dm.holdsChunk(pkt.getChunkIndex())) {
+                // tell the requester what we do hold so it can ask elsewhere for this one
+                int base = DownloadManager.havePageBase(pkt.getChunkIndex());
+                sendHave(pkt.getSourceIP(), hash, dm.getFileSize(), base, dm.havePage(base));
+                return;
+            }
+        }
+        if (!uploadScheduler.offer(pkt)) {
+            sendBusy(pkt.getSourceIP(), hash, pkt.getChunkIndex());
+        }
+    }
+
+    private void sendBusy(String ip, String hash, int chunkIndex) {
+        Packet busy = new Packet(Packet.PacketType.CHUNK_BUSY, 1, getLocalIP());
+        busy.setFileHash(hash);
+        busy.setChunkIndex(chunkIndex);
+        busy.setMessage(Long.toString(uploadScheduler.estimateRetryAfterMs()));
+        busy.setNodeId(this.nodeId);
+        sendUDP(busy, ip, chunkTransferPort);
+    }
+
+    // the receiver lists what it is missing; queue exactly those chunks for (re)transmission
+    private void handleChunkNack(Packet pkt) {
+        String hash = pkt.getFileHash();
+        if (pkt.getChunkData() == null) {
             return;
         }
-        byte[] chunkData = readChunkFromFile(fm.getFile(), chunkIndex);
+        // a partial source only queues what it holds; the receiver re-routes the rest
+        boolean whole = sharedFile(hash) != null || packs.containsKey(hash);
+        DownloadManager partial = whole ? null : activeDownloads.get(hash);
+        if (!whole && partial == null) {
+            return;
+        }
+        BitSet missing = BitSet.valueOf(pkt.getChunkData());
+        int base = pkt.getChunkIndex();
+        for (int bit = missing.nextSetBit(0); bit >= 0; bit = missing.nextSetBit(bit + 1)) {
+            if (partial != null && !partial.holdsChunk(base + bit)) continue;
+            Packet req = new Packet(Packet.PacketType.CHUNK_REQUEST, 1, pkt.getSourceIP());
+            req.setSeqNumber(pkt.getSeqNumber());
+            req.setFileHash(hash);
+            req.setChunkIndex(base + bit);
+            req.setNodeId(pkt.getNodeId());
+            if (!uploadScheduler.offer(req)) {
+                // the rest will show up again in the receiver's next NACK
+                sendBusy(pkt.getSourceIP(), hash, base + bit);
+                break;
+            }
+        }
+    }
+
+    void sendChunkNack(String ip, String hash, int baseIndex, byte[] missingBitmap) {
+        Packet nack = new Packet(Packet.PacketType.CHUNK_NACK, 1, getLocalIP());
+        nack.setFileHash(hash);
+        nack.setChunkIndex(baseIndex);
+        nack.setChunkData(missingBitmap);
+        nack.setNodeId(this.nodeId);
+        sendUDP(nack, ip, chunkTransferPort);
+    }
+
+    // returns the chunk bytes sent, 0 if there was nothing to serve
+    private int serveChunkRequest(Packet pkt) {
+        String hash = pkt.getFileHash();
+        int chunkIndex = pkt.getChunkIndex();
+        FileMetadata fm = sharedFile(hash);
+        FolderListing.Pack pack = (fm == null) ? packs.get(hash) : null;
+        byte[] chunkData;
+        long fileSize;
+        if (fm != null) {
+            chunkData = chunkCache.get(hash, chunkIndex, (h, i) -> readChunkFromFile(fm.getFile(), h, i, pkt.getSourceIP()));
+            fileSize = fm.getFileSize();
+        } else if (pack != null) {
+            pack.touched = System.currentTimeMillis();
+            chunkData = chunkCache.get(hash, chunkIndex, (h, i) -> readPackChunk(pack, i, pkt.getSourceIP()));
+            fileSize = pack.size;
+        } else {
+            // still downloading it ourselves: serve straight from the download's buffers
+            DownloadManager dm = activeDownloads.get(hash);
+            chunkData = (dm != null) ? dm.servableChunk(chunkIndex) : null;
+            fileSize = (dm != null) ? dm.getFileSize() : 0;
+        }
+        if (chunkData == null) {
+            return 0;
+        }
 
         Packet resp = new Packet(Packet.PacketType.CHUNK_RESPONSE, 1, getLocalIP());
         resp.setFileHash(hash);
         resp.setChunkIndex(chunkIndex);
         resp.setChunkData(chunkData);
-        resp.setFileSize(fm.getFileSize());
+        resp.setFileSize(fileSize);
         resp.setNodeId(this.nodeId);
+        attachPex(resp, pkt.getSourceIP());
 
         try {
             sendUDP(resp, pkt.getSourceIP(), chunkTransferPort);
@@ -283,44 +803,785 @@ public class P2PNode {
                     + ", chunk=" + chunkIndex + ") to " + pkt.getSourceIP());
         } catch (Exception e) {
             e.printStackTrace();
+            return 0;
+        }
+        return chunkData.length;
+    }
+
+    private void handleManifestRequest(Packet pkt) {
+        List<ChunkStore.ChunkRef> manifest = chunkStore.getManifest(pkt.getFileHash());
+        if (manifest == null) {
+            return;
+        }
+        int start = Math.max(0, pkt.getChunkIndex());
+        int end = Math.min(manifest.size(), start + MANIFEST_PAGE_SIZE);
+        StringBuilder sb = new StringBuilder();
+        sb.append(manifest.size()).append("\n");
+        for (int i = start; i < end; i++) {
+            ChunkStore.ChunkRef ref = manifest.get(i);
+            sb.append(ref.getHash()).append("|").append(ref.getLength()).append("\n");
+        }
+        Packet resp = new Packet(Packet.PacketType.MANIFEST_RESPONSE, 1, getLocalIP());
+        resp.setSeqNumber(pkt.getSeqNumber());
+        resp.setNodeId(this.nodeId);
+        resp.setFileHash(pkt.getFileHash());
+        resp.setChunkIndex(start);
+        resp.setMessage(sb.toString());
+        sendUDP(resp, pkt.getSourceIP(), chunkTransferPort);
+    }
+
+    // fetches the content-defined chunk list of a remote file, or null if the peer can't provide it
+    List<ChunkStore.ChunkRef> fetchManifest(String ip, String hash) {
+        List<ChunkStore.ChunkRef> refs = new ArrayList<>();
+        int total = -1;
+        while (total < 0 || refs.size() < total) {
+            Packet resp = requestManifestPage(ip, hash, refs.size());
+            if (resp == null) {
+                resp = requestManifestPage(ip, hash, refs.size());
+            }
+            if (resp == null) {
+                return null;
+            }
+            String[] lines = resp.getMessage().split("\n");
+            total = Integer.parseInt(lines[0].trim());
+            int before = refs.size();
+            for (int i = 1; i < lines.length; i++) {
+                String[] parts = lines[i].split("\\|");
+                if (parts.length >= 2) {
+                    refs.add(new ChunkStore.ChunkRef(parts[0], Integer.parseInt(parts[1])));
+                }
+            }
+            if (refs.size() == before && refs.size() < total) {
+                return null;
+            }
+        }
+        return refs;
+    }
+
+    private Packet requestManifestPage(String ip, String hash, int start) {
+        Packet req = new Packet(Packet.PacketType.MANIFEST_REQUEST, 1, getLocalIP());
+        req.setNodeId(this.nodeId);
+        req.setFileHash(hash);
+        req.setChunkIndex(start);
+        return awaitReply(req, ip, MANIFEST_TIMEOUT_MS);
+    }
+
+    // request/response over UDP for callers that may block; the reply echoes the request's seq
+    private Packet awaitReply(Packet req, String ip, long timeoutMs) {
+        CompletableFuture<Packet> future = new CompletableFuture<>();
+        pendingReplies.put(req.getSeqNumber(), future);
+        sendUDP(req, ip, chunkTransferPort);
+        try {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            return null;
+        } finally {
+            pendingReplies.remove(req.getSeqNumber());
+        }
+    }
+
+    // message is the folder ("" for the whole share), chunkIndex the first entry wanted; a fetch starting at 0
+    // gets a fresh listing, built off the loop since it walks every shared file
+    private void handleFolderListRequest(Packet pkt) {
+        File root = rootFolder;
+        if (root == null) {
+            return;
+        }
+        String folder = FolderListing.normalizeFolder(pkt.getMessage());
+        FolderListing cached;
+        synchronized (folderListings) {
+            cached = folderListings.get(folder);
+        }
+        long now = System.currentTimeMillis();
+        if (cached != null && (pkt.getChunkIndex() > 0 || now - cached.getBuiltAt() < FOLDER_LISTING_TTL_MS)) {
+            sendFolderPage(pkt, cached);
+            return;
+        }
+        synchronized (folderListingBuilds) {
+            List<Packet> waiting = folderListingBuilds.get(folder);
+            if (waiting != null) {
+                // already being built: answered along with the request that started it
+                if (waiting.size() < MAX_FOLDER_LISTING_WAITERS) waiting.add(pkt);
+                return;
+            }
+            if (folderListingBuilds.size() >= MAX_FOLDER_LISTING_BUILDS) {
+                // dropped; the requester retries and is likely to find the listing cached by then
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(pkt);
+            folderListingBuilds.put(folder, waiting);
+        }
+        executor.submit(() -> buildFolderListing(root, folder));
+    }
+
+    private void buildFolderListing(File root, String folder) {
+        FolderListing listing = null;
+        List<Packet> waiting;
+        try {
+            listing = FolderListing.build(root, folder, sharedPaths.values(), System.currentTimeMillis());
+            packs.values().removeIf(p -> System.currentTimeMillis() - p.touched > PACK_IDLE_MS);
+            packs.putAll(listing.getPacks());
+            synchronized (folderListings) {
+                folderListings.put(folder, listing);
+                Iterator<FolderListing> eldest = folderListings.values().iterator();
+                while (folderListings.size() > MAX_FOLDER_LISTINGS) {
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        } finally {
+            // a failed build must not leave the folder marked as in progress
+            synchronized (folderListingBuilds) {
+                waiting = folderListingBuilds.remove(folder);
+            }
+        }
+        System.out.println("[P2PNode] Listed '" + folder + "' for " + waiting.size() + " request(s): "
+                + listing.getEntries().size() + " file(s), " + listing.getPacks().size() + " pack(s)");
+        for (Packet req : waiting) {
+            sendFolderPage(req, listing);
+        }
+    }
+
+    private void sendFolderPage(Packet req, FolderListing listing) {
+        Packet resp = new Packet(Packet.PacketType.FOLDER_LIST_RESPONSE, 1, getLocalIP());
+        resp.setSeqNumber(req.getSeqNumber());
+        resp.setNodeId(this.nodeId);
+        resp.setChunkIndex(Math.max(0, req.getChunkIndex()));
+        resp.setMessage(listing.encodePage(req.getChunkIndex(), MAX_FOLDER_PAGE_BYTES));
+        sendUDP(resp, req.getSourceIP(), chunkTransferPort);
+    }
+
+    // the entries of a remote folder, or null if the peer can't provide them or the listing changed midway
+    List<FolderListing.Entry> fetchFolderListing(String ip, String folder) {
+        List<FolderListing.Entry> entries = new ArrayList<>();
+        int total = -1;
+        String version = null;
+        while (total < 0 || entries.size() < total) {
+            Packet req = new Packet(Packet.PacketType.FOLDER_LIST, 1, getLocalIP());
+            req.setNodeId(this.nodeId);
+            req.setMessage(folder);
+            req.setChunkIndex(entries.size());
+            Packet resp = awaitReply(req, ip, MANIFEST_TIMEOUT_MS);
+            if (resp == null) {
+                resp = awaitReply(req, ip, MANIFEST_TIMEOUT_MS);
+            }
+            if (resp == null || resp.getChunkIndex() != entries.size()) {
+                return null;
+            }
+            String[] lines = resp.getMessage().split("\n");
+            String[] head = lines[0].trim().split(" ");
+            if (head.length < 2 || (version != null && !version.equals(head[1]))) {
+                return null;
+            }
+            int before = entries.size();
+            try {
+                total = Integer.parseInt(head[0]);
+                for (int i = 1; i < lines.length; i++) {
+                    FolderListing.Entry e = FolderListing.parseEntry(lines[i]);
+                    if (e != null) {
+                        entries.add(e);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("[P2PNode] Malformed folder listing from " + ip + ": " + e.getMessage());
+                return null;
+            }
+            version = head[1];
+            if (entries.size() == before && entries.size() < total) {
+                return null;
+            }
+        }
+        return entries;
+    }
+
+    private static class DeltaSession {
+        final int blockSize;
+        final byte[] signatures;
+        int received;
+        long touched = System.currentTimeMillis();
+        // the latest "copies" request while the scan runs; it gets the first page
+        volatile Packet waiting;
+        volatile List<DeltaSync.Copy> copies;
+
+        DeltaSession(int blockSize, int blocks) {
+            this.blockSize = blockSize;
+            this.signatures = new byte[blocks * DeltaSync.SIGNATURE_BYTES];
         }
     }
 
-    private byte[] readChunkFromFile(File file, int chunkIndex) {
+    // message "sig <blockSize>" uploads a page of signatures, "copies" asks for a page of the result
+    private void handleDeltaRequest(Packet pkt) {
+        String hash = pkt.getFileHash();
+        FileMetadata fm = sharedFile(hash);
+        if (fm == null) {
+            return;
+        }
+        String key = pkt.getSourceIP() + "|" + hash;
+        String msg = pkt.getMessage();
+        if (msg.startsWith("sig ")) {
+            long blocks = pkt.getFileSize();
+            int start = pkt.getChunkIndex();
+            byte[] page = pkt.getChunkData();
+            DeltaSession session = deltaSessions.get(key);
+            if (start == 0 && (session == null || session.received > 0)) {
+                int blockSize;
+                try {
+                    blockSize = Integer.parseInt(msg.substring(4).trim());
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                // the same bounds our own signing uses, so a peer can't make us allocate more than a real delta needs;
+                // the base may well be larger than our file, since a new version can shrink
+                if (blocks < 0 || blocks > DeltaSync.MAX_BLOCKS || blockSize < DeltaSync.MIN_BLOCK
+                        || blockSize > DeltaSync.MAX_BLOCK || Integer.bitCount(blockSize) != 1) {
+                    return;
+                }
+                if (deltaSessions.size() >= MAX_DELTA_SESSIONS && !deltaSessions.containsKey(key)) {
+                    long now = System.currentTimeMillis();
+                    deltaSessions.values().removeIf(ds -> now - ds.touched > DELTA_SCAN_TIMEOUT_MS);
+                    if (deltaSessions.size() >= MAX_DELTA_SESSIONS) return;
+                }
+                session = new DeltaSession(blockSize, (int) blocks);
+                deltaSessions.put(key, session);
+            }
+            if (session == null || page == null) {
+                return;
+            }
+            session.touched = System.currentTimeMillis();
+            // stop-and-wait: a page we already have is just acked again
+            if (start == session.received) {
+                int n = Math.min(page.length / DeltaSync.SIGNATURE_BYTES,
+                        session.signatures.length / DeltaSync.SIGNATURE_BYTES - start);
+                System.arraycopy(page, 0, session.signatures, start * DeltaSync.SIGNATURE_BYTES, n * DeltaSync.SIGNATURE_BYTES);
+                session.received += n;
+            }
+            sendDeltaReply(pkt, session.received, "ack", null);
+            return;
+        }
+
+        DeltaSession session = deltaSessions.get(key);
+        if (session == null || session.received * DeltaSync.SIGNATURE_BYTES < session.signatures.length) {
+            return;
+        }
+        session.touched = System.currentTimeMillis();
+        List<DeltaSync.Copy> copies = session.copies;
+        if (copies == null) {
+            // scanning reads the whole file, so it runs off the loop and answers whichever request is waiting then
+            boolean started = session.waiting != null;
+            session.waiting = pkt;
+            if (!started) {
+                executor.submit(() -> {
+                    try {
+                        List<DeltaSync.Copy> found = DeltaSync.computeDelta(fm.getFile(), session.blockSize, session.signatures);
+                        System.out.println("[P2PNode] Delta for " + hash + ": " + found.size()
+                                + " copy run(s) for " + pkt.getSourceIP());
+                        session.copies = found;
+                        sendDeltaPage(session.waiting, found);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        deltaSessions.remove(key);
+                    }
+                });
+            }
+            return;
+        }
+        sendDeltaPage(pkt, copies);
+        if (pkt.getChunkIndex() + DELTA_COPIES_PER_PAGE >= copies.size()) {
+            // the last page may still be lost, but a retry from scratch is cheap next to keeping every session
+            deltaSessions.remove(key);
+        }
+    }
+
+    private void sendDeltaPage(Packet req, List<DeltaSync.Copy> copies) {
+        int start = Math.min(Math.max(0, req.getChunkIndex()), copies.size());
+        int end = Math.min(copies.size(), start + DELTA_COPIES_PER_PAGE);
+        sendDeltaReply(req, start, Integer.toString(copies.size()), DeltaSync.encode(copies, start, end));
+    }
+
+    private void sendDeltaReply(Packet req, int index, String message, byte[] data) {
+        Packet resp = new Packet(Packet.PacketType.DELTA_RESPONSE, 1, getLocalIP());
+        resp.setSeqNumber(req.getSeqNumber());
+        resp.setNodeId(this.nodeId);
+        resp.setFileHash(req.getFileHash());
+        resp.setChunkIndex(index);
+        resp.setMessage(message);
+        resp.setChunkData(data);
+        sendUDP(resp, req.getSourceIP(), chunkTransferPort);
+    }
+
+    // uploads the signatures of our old copy and returns where its blocks go in the new file,
+    // or null if the peer can't provide a delta
+    List<DeltaSync.Copy> fetchDelta(String ip, String hash, int blockSize, byte[] signatures) {
+        int blocks = signatures.length / DeltaSync.SIGNATURE_BYTES;
+        if (blocks == 0) {
+            return Collections.emptyList();
+        }
+        int sent = 0;
+        while (sent < blocks) {
+            int n = Math.min(DELTA_SIGNATURES_PER_PAGE, blocks - sent);
+            Packet req = new Packet(Packet.PacketType.DELTA_REQUEST, 1, getLocalIP());
+            req.setNodeId(this.nodeId);
+            req.setFileHash(hash);
+            req.setChunkIndex(sent);
+            req.setFileSize(blocks);
+            req.setMessage("sig " + blockSize);
+            req.setChunkData(Arrays.copyOfRange(signatures, sent * DeltaSync.SIGNATURE_BYTES,
+                    (sent + n) * DeltaSync.SIGNATURE_BYTES));
+            Packet ack = awaitReply(req, ip, MANIFEST_TIMEOUT_MS);
+            if (ack == null) {
+                ack = awaitReply(req, ip, MANIFEST_TIMEOUT_MS);
+            }
+            if (ack == null || ack.getChunkIndex() <= sent) {
+                return null;
+            }
+            sent = ack.getChunkIndex();
+        }
+
+        List<DeltaSync.Copy> copies = new ArrayList<>();
+        int total = -1;
+        while (total < 0 || copies.size() < total) {
+            Packet req = new Packet(Packet.PacketType.DELTA_REQUEST, 1, getLocalIP());
+            req.setNodeId(this.nodeId);
+            req.setFileHash(hash);
+            req.setChunkIndex(copies.size());
+            req.setMessage("copies");
+            Packet resp = awaitReply(req, ip, total < 0 ? DELTA_SCAN_TIMEOUT_MS : MANIFEST_TIMEOUT_MS);
+            if (resp == null) {
+                resp = awaitReply(req, ip, MANIFEST_TIMEOUT_MS);
+            }
+            if (resp == null || resp.getChunkIndex() != copies.size()) {
+                return null;
+            }
+            total = Integer.parseInt(resp.getMessage().trim());
+            int before = copies.size();
+            if (resp.getChunkData() != null) {
+                copies.addAll(DeltaSync.decode(resp.getChunkData()));
+            }
+            if (copies.size() == before && copies.size() < total) {
+                return null;
+            }
+        }
+        return copies;
+    }
+
+    ChunkStore getChunkStore() {
+        return chunkStore;
+    }
+
+    // called from the download's own thread, never from the network loop; false if the file turned out not to
+    // match its hash, in which case the download has been failed
+    boolean onDownloadFinished(String fileHash, File outFile) {
+        FolderDownload job = folderParts.get(fileHash);
+        if (job != null) {
+            // placing the file already checked, shared and indexed it
+            outFile = job.place(fileHash, outFile);
+        } else if (!shareDownloadedFile(fileHash, outFile)) {
+            // nothing corrupt is indexed, announced or reported as done
+            if (!outFile.delete()) {
+                System.err.println("[P2PNode] Could not delete " + outFile.getAbsolutePath());
+            }
+            DownloadManager dm = activeDownloads.get(fileHash);
+            if (dm != null) {
+                dm.failClaimed("content does not match its hash");
+            } else {
+                onDownloadEnded(fileHash);
+            }
+            return false;
+        }
+        onDownloadEnded(fileHash);
+        if (job == null) {
+            chunkStore.indexFile(fileHash, outFile);
+        }
+        for (NodeListener l : listeners) {
+            l.onDownloadFinished(fileHash, outFile);
+        }
+        return true;
+    }
+
+    // a finished download becomes a regular shared file, but only once its content is known to match the hash
+    private boolean shareDownloadedFile(String fileHash, File outFile) {
+        FileMetadata fm = new FileMetadata(outFile);
+        if (fm.getHashKey() == null || !fileHash.equalsIgnoreCase(fm.getFileHash())) {
+            System.err.println("[P2PNode] Downloaded file does not match hash=" + fileHash + ", not sharing it");
+            return false;
+        }
+        share(fm);
+        return true;
+    }
+
+    private void share(FileMetadata fm) {
+        putSharedFile(fm);
+        dhtRecords.put(fm.getFileHash(), fm.getFileSize());
+        DiscoveryService ds = discoveryService;
+        if (ds != null) {
+            ds.onShareSummaryChanged();
+        }
+        System.out.println("[P2PNode] Shared -> " + fm.getFile().getAbsolutePath() + " [hash=" + fm.getFileHash() + "]");
+    }
+
+    // a file unpacked by a folder download; false if its content does not match the listed hash
+    boolean shareFolderFile(String fileHash, File file) {
+        if (!shareDownloadedFile(fileHash, file)) {
+            return false;
+        }
+        chunkStore.indexFile(fileHash, file);
+        return true;
+    }
+
+    // a pack member, already checked against its hash in memory and written; content is those same bytes, so
+    // the file is never read back
+    void shareUnpackedFile(FileMetadata fm, InputStream content) {
+        share(fm);
+        chunkStore.indexFile(fm.getFileHash(), fm.getFile(), content);
+    }
+
+    // completed, failed or cancelled: free the slot so the same hash can be downloaded again
+    void onDownloadEnded(String fileHash) {
+        DownloadManager dm = activeDownloads.remove(fileHash);
+        downloadScheduler.onFinished(fileHash);
+        FolderDownload job = folderParts.remove(fileHash);
+        if (job != null) {
+            job.onPartEnded(fileHash, (dm != null) ? dm.getState() : DownloadManager.State.FAILED);
+        }
+    }
+
+    // fetches a folder of the peer's share ("" for all of it) into destination/<folder name> as one job
+    public FolderDownload downloadFolder(String ip, String folder) {
+        if (destinationFolder == null) {
+            System.out.println("[P2PNode] Destination folder not set!");
+            return null;
+        }
+        String f = FolderListing.normalizeFolder(folder);
+        String name = f.isEmpty() ? ip : f.substring(f.lastIndexOf('/') + 1);
+        FolderDownload job = new FolderDownload(this, ip, f, new File(destinationFolder, name));
+        folderDownloads.add(job);
+        executor.submit(job::run);
+        return job;
+    }
+
+    public List<FolderDownload> getFolderDownloads() {
+        return Collections.unmodifiableList(folderDownloads);
+    }
+
+    // false if that hash is already being downloaded
+    boolean startFolderPart(FolderDownload job, DownloadManager dm) {
+        if (activeDownloads.putIfAbsent(dm.getFileHash(), dm) != null) {
+            return false;
+        }
+        folderParts.put(dm.getFileHash(), job);
+        downloadScheduler.submit(dm, 0);
+        return true;
+    }
+
+    // waits on a download someone else started; false if another job already waits on it or it just ended
+    boolean awaitFolderPart(FolderDownload job, String hash) {
+        if (folderParts.putIfAbsent(hash, job) != null) {
+            return false;
+        }
+        if (!activeDownloads.containsKey(hash)) {
+            folderParts.remove(hash, job);
+            return false;
+        }
+        return true;
+    }
+
+    File sharedFileFor(String hash) {
+        FileMetadata fm = sharedFile(hash);
+        return (fm != null) ? fm.getFile() : null;
+    }
+
+    public boolean pauseDownload(String fileHash) {
+        DownloadManager dm = activeDownloads.get(fileHash);
+        if (dm == null) return false;
+        dm.pause();
+        return true;
+    }
+
+    public boolean resumeDownload(String fileHash) {
+        DownloadManager dm = activeDownloads.get(fileHash);
+        if (dm == null) return false;
+        dm.resume();
+        return true;
+    }
+
+    public boolean cancelDownload(String fileHash) {
+        DownloadManager dm = activeDownloads.get(fileHash);
+        if (dm == null) return false;
+        dm.cancel();
+        return true;
+    }
+
+    // streams a download while it runs: reads block on missing chunks and pull them forward
+    public SeekableByteChannel openDownloadChannel(String fileHash) throws IOException {
+        DownloadManager dm = activeDownloads.get(fileHash);
+        if (dm == null) {
+            File done = (destinationFolder != null) ? new File(destinationFolder, fileHash + "_downloaded.dat") : null;
+            if (done != null && done.isFile()) {
+                return FileChannel.open(done.toPath(), StandardOpenOption.READ);
+            }
+            throw new FileNotFoundException("No download for hash=" + fileHash);
+        }
+        dm.setSequential(true);
+        downloadScheduler.promote(fileHash, STREAMING_PRIORITY);
+        return new DownloadChannel(dm);
+    }
+
+    public InputStream openDownloadStream(String fileHash) throws IOException {
+        return Channels.newInputStream(openDownloadChannel(fileHash));
+    }
+
+    public synchronized boolean isConnected() {
+        return isConnected;
+    }
+
+    public Set<PeerInfo> getDiscoveredPeers() {
+        synchronized (discoveredPeers) {
+            return new HashSet<>(discoveredPeers);
+        }
+    }
+
+    public UploadScheduler getUploadScheduler() {
+        return uploadScheduler;
+    }
+
+    public long getPacketsSent() {
+        Transport t = transport;
+        return (t != null) ? t.getPacketsSent() : 0;
+    }
+
+    public long getDatagramsSent() {
+        Transport t = transport;
+        return (t != null) ? t.getDatagramsSent() : 0;
+    }
+
+    public Map<String, DownloadManager> getActiveDownloads() {
+        return Collections.unmodifiableMap(activeDownloads);
+    }
+
+    public DownloadScheduler getDownloadScheduler() {
+        return downloadScheduler;
+    }
+
+    // new downloads fetch front to back following any streaming reader, instead of only once in order
+    public void setSequentialDownloads(boolean sequential) {
+        this.sequentialDownloads = sequential;
+    }
+
+    public void setMaxActiveDownloads(int max) {
+        downloadScheduler.setMaxActive(max);
+    }
+
+    public void setDownloadRateLimit(long bytesPerSec) {
+        downloadScheduler.setGlobalRate(bytesPerSec);
+    }
+
+    public void setPerDownloadRateLimit(long bytesPerSec) {
+        downloadScheduler.setPerDownloadRate(bytesPerSec);
+    }
+
+    // null when there is nothing valid to send, so the cache never keeps a failed read
+    private byte[] readChunkFromFile(File file, String hash, int chunkIndex, String forPeer) {
         long offset = (long) chunkIndex * CHUNK_SIZE;
-        if (offset >= file.length()) {
-            return new byte[0];
+        if (chunkIndex < 0 || offset >= file.length()) {
+            return null;
         }
         int toRead = (int) Math.min(CHUNK_SIZE, file.length() - offset);
         byte[] buffer = new byte[toRead];
-        try (FileInputStream fis = new FileInputStream(file)) {
-            fis.skip(offset);
-            fis.read(buffer, 0, toRead);
+        TraceEvents.ChunkDiskRead ev = new TraceEvents.ChunkDiskRead();
+        ev.begin();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(offset);
+            raf.readFully(buffer, 0, toRead);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        ev.end();
+        if (ev.shouldCommit()) {
+            ev.hash = hash;
+            ev.chunkIndex = chunkIndex;
+            ev.peer = forPeer;
+            ev.size = toRead;
+            ev.commit();
+        }
+        return buffer;
+    }
+
+    private byte[] readPackChunk(FolderListing.Pack pack, int chunkIndex, String forPeer) {
+        if (chunkIndex < 0) {
+            return null;
+        }
+        TraceEvents.ChunkDiskRead ev = new TraceEvents.ChunkDiskRead();
+        ev.begin();
+        byte[] buffer;
+        try {
+            buffer = pack.readChunk(chunkIndex, CHUNK_SIZE);
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
+        }
+        if (buffer.length == 0) {
+            return null;
+        }
+        ev.end();
+        if (ev.shouldCommit()) {
+            ev.hash = pack.hash;
+            ev.chunkIndex = chunkIndex;
+            ev.peer = forPeer;
+            ev.size = buffer.length;
+            ev.commit();
         }
         return buffer;
     }
 
     private void handleChunkResponse(Packet pkt) {
         String hash = pkt.getFileHash();
+        absorbPex(hash, pkt.getMessage(), pkt.getFileSize());
         DownloadManager dm = activeDownloads.get(hash);
+        PeerCache cache = peerCache;
+        if (cache != null && pkt.getChunkData() != null) {
+            cache.noteBytes(pkt.getSourceIP(), pkt.getChunkData().length, System.currentTimeMillis());
+        }
         if (dm != null) {
-            dm.handleChunkData(pkt.getChunkIndex(), pkt.getChunkData());
+            dm.onChunkResponse(pkt.getSourceIP(), pkt.getChunkIndex(), pkt.getChunkData());
         } else {
             System.out.println("[P2PNode] No active download for hash=" + hash);
         }
     }
 
+    // sent to every source and known holder, so each can pick us as a source for what we already have
+    void announceHave(String hash, long size, List<String> sources, Map<Integer, byte[]> pages) {
+        Set<String> targets = new LinkedHashSet<>(sources);
+        for (PeerInfo p : getPeersForFile(hash)) {
+            targets.add(p.getIpAddress());
+        }
+        targets.remove(getLocalIP());
+        int sent = 0;
+        for (String ip : targets) {
+            if (sent++ >= MAX_HAVE_TARGETS) break;
+            for (Map.Entry<Integer, byte[]> page : pages.entrySet()) {
+                sendHave(ip, hash, size, page.getKey(), page.getValue());
+            }
+        }
+        if (dhtRecords.putIfAbsent(hash, size) == null) {
+            KademliaDht d = dht;
+            if (d != null) {
+                executor.submit(() -> d.publish(hash, size));
+            }
+        }
+    }
+
+    private void sendHave(String ip, String hash, long size, int base, byte[] page) {
+        Packet have = new Packet(Packet.PacketType.HAVE, 1, getLocalIP());
+        have.setFileHash(hash);
+        have.setChunkIndex(base);
+        have.setChunkData(page);
+        have.setFileSize(size);
+        have.setNodeId(this.nodeId);
+        sendUDP(have, ip, chunkTransferPort);
+    }
+
+    private void handleHave(Packet pkt) {
+        String hash = pkt.getFileHash();
+        String ip = pkt.getSourceIP();
+        if (pkt.getChunkData() == null || ip.equals(getLocalIP())) {
+            return;
+        }
+        addFilePeer(hash, ip, pkt.getFileSize());
+        DownloadManager dm = activeDownloads.get(hash);
+        if (dm != null) {
+            dm.onHave(ip, pkt.getChunkIndex(), BitSet.valueOf(pkt.getChunkData()));
+        }
+    }
+
+    private void handleChunkBusy(Packet pkt) {
+        DownloadManager dm = activeDownloads.get(pkt.getFileHash());
+        if (dm == null) {
+            return;
+        }
+        long retryAfterMs;
+        try {
+            retryAfterMs = Long.parseLong(pkt.getMessage().trim());
+        } catch (NumberFormatException e) {
+            retryAfterMs = 200;
+        }
+        // a peer asking for a longer wait than ours ever would is not waited out past our own idle limit
+        retryAfterMs = Math.max(0, Math.min(retryAfterMs, UploadScheduler.MAX_RETRY_AFTER_MS));
+        System.out.println("[P2PNode] Peer " + pkt.getSourceIP() + " busy, retry chunk " + pkt.getChunkIndex()
+                + " after " + retryAfterMs + " ms");
+        dm.onPeerBusy(pkt.getSourceIP(), pkt.getChunkIndex(), retryAfterMs);
+    }
+
+    RttEstimator rttFor(String ip) {
+        return peerRtt.computeIfAbsent(ip, k -> new RttEstimator());
+    }
+
+    public Map<String, RttEstimator> getRttStats() {
+        return Collections.unmodifiableMap(peerRtt);
+    }
+
+    // for download work that may block, off both the loop and the download's own thread
+    void runTask(Runnable task) {
+        executor.submit(task);
+    }
+
+    // runs on the network loop thread, so the task must not block
+    void runLater(Runnable task, long delayMs) {
+        Transport t = transport;
+        if (t != null) {
+            t.schedule(task, delayMs);
+        }
+    }
+
     public Set<PeerInfo> getPeersForFile(String fileHash) {
-        return filePeers.getOrDefault(fileHash, Collections.emptySet());
+        synchronized (filePeers) {
+            return new HashSet<>(filePeers.getOrDefault(fileHash, Collections.emptySet()));
+        }
+    }
+
+    private void resolveAndDownload(String fileHash, long fileSize, boolean multiSource, int priority) {
+        KademliaDht d = dht;
+        if (d == null) {
+            System.out.println("[P2PNode] Not connected, cannot look up sources for " + fileHash);
+            return;
+        }
+        System.out.println("[P2PNode] Looking up sources for " + fileHash + " in the DHT...");
+        executor.submit(() -> {
+            Set<PeerInfo> found = d.findProviders(fileHash);
+            if (found.isEmpty()) {
+                System.out.println("[P2PNode] No known peers for file " + fileHash + " => cannot download.");
+                return;
+            }
+            for (PeerInfo p : found) {
+                addFilePeer(fileHash, p.getIpAddress(), p.getFileSize());
+            }
+            downloadFile(fileHash, fileSize, multiSource, found, priority);
+        });
+    }
+
+    // fetches a new version of a file we hold an older copy of, transferring only what the copy lacks
+    public void downloadDelta(String fileHash, long fileSize, File base) {
+        if (base == null || !base.isFile()) {
+            System.out.println("[P2PNode] Delta base is not a file: " + base);
+            return;
+        }
+        deltaBases.put(fileHash, base);
+        downloadFile(fileHash, fileSize);
     }
 
     public void downloadFile(String fileHash, long fileSize) {
-        downloadFile(fileHash, fileSize, false, Collections.emptySet());
+        downloadFile(fileHash, fileSize, true, Collections.emptySet());
     }
 
     public void downloadFile(String fileHash, long fileSize, boolean multiSource, Set<PeerInfo> peers) {
+        downloadFile(fileHash, fileSize, multiSource, peers, 0);
+    }
+
+    public void downloadFile(String fileHash, long fileSize, boolean multiSource, Set<PeerInfo> peers, int priority) {
         if (destinationFolder == null) {
             System.out.println("[P2PNode] Destination folder not set!");
             return;
@@ -343,13 +1604,18 @@ public class P2PNode {
                 System.out.println("[P2PNode] Creating single-source DownloadManager for hash=" + fileHash
                         + ", from IP=" + remoteIp);
             } else {
-                System.out.println("[P2PNode] No known peers for file " + fileHash + " => cannot single-source download.");
+                resolveAndDownload(fileHash, fileSize, multiSource, priority);
                 return;
             }
         }
-        activeDownloads.put(fileHash, dm);
+        dm.setSequential(sequentialDownloads);
+        dm.setDeltaBase(deltaBases.remove(fileHash));
+        if (activeDownloads.putIfAbsent(fileHash, dm) != null) {
+            System.out.println("[P2PNode] Already downloading: " + fileHash);
+            return;
+        }
 
-        executor.submit(dm::startDownload);
+        downloadScheduler.submit(dm, priority);
     }
 
     public void requestChunk(String ip, String hash, int index) {
@@ -357,53 +1623,149 @@ public class P2PNode {
         req.setFileHash(hash);
         req.setChunkIndex(index);
         req.setNodeId(this.nodeId);
+        attachPex(req, ip);
         sendUDP(req, ip, chunkTransferPort);
     }
 
+    // tells the peer about other sources we know for the packet's hash; runs both ways, so seeds learn of
+    // each other from downloaders and pass that on to the next requester
+    private void attachPex(Packet pkt, String toIp) {
+        String hash = pkt.getFileHash();
+        long now = System.currentTimeMillis();
+        String key = toIp + "|" + hash;
+        Long last = lastPexSent.get(key);
+        if (last != null && now - last < PEX_INTERVAL_MS) {
+            return;
+        }
+        if (lastPexSent.size() > 4096) {
+            lastPexSent.values().removeIf(t -> now - t > PEX_INTERVAL_MS);
+        }
+        lastPexSent.put(key, now);
+
+        List<String> ips = new ArrayList<>();
+        for (PeerInfo p : getPeersForFile(hash)) {
+            if (ips.size() >= MAX_PEX_PEERS) break;
+            if (!p.getIpAddress().equals(toIp)) {
+                ips.add(p.getIpAddress());
+            }
+        }
+        if (!ips.isEmpty()) {
+            pkt.setMessage(PEX_PREFIX + String.join(",", ips));
+        }
+    }
+
+    private void absorbPex(String hash, String message, long fileSize) {
+        if (!message.startsWith(PEX_PREFIX)) {
+            return;
+        }
+        String self = getLocalIP();
+        DownloadManager dm = activeDownloads.get(hash);
+        for (String ip : message.substring(PEX_PREFIX.length()).split(",")) {
+            ip = ip.trim();
+            if (ip.isEmpty() || ip.equals(self)) continue;
+            boolean added = addFilePeer(hash, ip, fileSize);
+            if (dm != null && dm.addSource(ip)) {
+                System.out.println("[P2PNode] PEX: new source " + ip + " for " + hash);
+            } else if (added) {
+                System.out.println("[P2PNode] PEX: learned source " + ip + " for " + hash);
+            }
+        }
+    }
+
+    void sendPacket(Packet pkt, String ip) {
+        sendUDP(pkt, ip, chunkTransferPort);
+    }
+
+    // typed query syntax, see SearchQuery.fromUserInput
     public void searchFile(String query) {
+        search(SearchQuery.fromUserInput(query));
+    }
+
+    // a query the summaries can judge goes by unicast to the peers that might have a match, unless that is most
+    // of the group anyway; everything else is flooded to the group as before
+    public void search(SearchQuery query) {
+        String message = query.toWire();
         Packet p = new Packet(Packet.PacketType.SEARCH, 2, getLocalIP());
         p.setNodeId(nodeId);
-        p.setMessage(query);
-        sendUDP(p, "172.20.10.15", discoveryPort);
-        System.out.println("[P2PNode] Sent SEARCH -> " + query);
+        p.setMessage(message);
+        DiscoveryService ds = discoveryService;
+        if (ds == null) {
+            System.out.println("[P2PNode] Not connected, SEARCH not sent.");
+            return;
+        }
+        List<String> targets = null;
+        if (ShareSummary.isRoutable(query)) {
+            List<String> members = new ArrayList<>();
+            synchronized (discoveredPeers) {
+                for (PeerInfo peer : discoveredPeers) {
+                    members.add(peer.getIpAddress());
+                }
+            }
+            targets = new ArrayList<>();
+            for (String ip : members) {
+                ShareSummary summary = peerSummaries.get(ip);
+                if (summary == null || summary.mightMatch(query)) {
+                    targets.add(ip);
+                }
+            }
+            if (members.isEmpty() || targets.size() * 2 > members.size()) {
+                targets = null;
+            }
+        }
+        if (targets == null) {
+            ds.sendToGroup(p);
+            TraceEvents.search("flood", query.toString(), discoveryGroup, 0, message.length());
+            System.out.println("[P2PNode] Sent SEARCH -> " + query);
+            return;
+        }
+        for (String ip : targets) {
+            sendUDP(p, ip, discoveryPort);
+        }
+        TraceEvents.search("routed", query.toString(), targets.size() + " peer(s)", 0, message.length());
+        System.out.println("[P2PNode] Sent SEARCH -> " + query + " to " + targets.size() + " peer(s) by summary");
     }
 
+    // never blocks: the datagram is queued and written by the network loop
     private void sendUDP(Packet pkt, String ip, int port) {
+        Transport.Endpoint endpoint = chunkEndpoint;
+        if (endpoint == null) {
+            return;
+        }
         try {
-            byte[] data = pkt.toBytes();
-            DatagramPacket dp = new DatagramPacket(data, data.length, InetAddress.getByName(ip), port);
-            if (udpSocket != null && !udpSocket.isClosed()) {
-                udpSocket.send(dp);
-                System.out.println("[P2PNode] Sent packet type=" + pkt.getType() + " size=" + data.length + " bytes to " + ip + ":" + port);
-            }
+            byte[] data = TraceEvents.encode(pkt, wireVersionFor(ip), ip);
+            endpoint.send(data, new InetSocketAddress(InetAddress.getByName(ip), port));
+            System.out.println("[P2PNode] Sent packet type=" + pkt.getType() + " size=" + data.length + " bytes to " + ip + ":" + port);
         } catch (Exception e) {
             System.err.println("[P2PNode] Failed to send packet type=" + pkt.getType() + " to " + ip + ":" + port);
             e.printStackTrace();
         }
     }
 
-    private void chunkListener() {
-        System.out.println("[P2PNode] Chunk listener on port " + chunkTransferPort);
-        byte[] buf = new byte[8192];
-        while (!udpSocket.isClosed()) {
-            try {
-                DatagramPacket dp = new DatagramPacket(buf, buf.length);
-                udpSocket.receive(dp);
-                byte[] incoming = Arrays.copyOfRange(dp.getData(), 0, dp.getLength());
-                Packet pkt = Packet.fromBytes(incoming);
-                handleIncomingPacket(pkt);
-            } catch (IOException e) {
-                if (udpSocket.isClosed()) {
-                    System.out.println("[P2PNode] chunk socket closed");
-                } else {
-                    e.printStackTrace();
-                }
-            }
+    private void onChunkDatagram(Packet pkt, InetSocketAddress from) {
+        fillFromDatagram(pkt, from);
+        handleIncomingPacket(pkt);
+    }
+
+    // v2 packets leave out what the datagram already tells us: the sender's address and, on hot paths, its id
+    void fillFromDatagram(Packet pkt, InetSocketAddress from) {
+        pkt.setDatagramIP(from.getAddress().getHostAddress());
+        if (pkt.getSourceIP().isEmpty()) {
+            pkt.setSourceIP(pkt.getDatagramIP());
+        }
+        String ip = pkt.getSourceIP();
+        if (pkt.getWireVersion() >= Packet.WIRE_V2) {
+            notePeerWireVersion(ip, pkt.getWireVersion());
+        }
+        if (pkt.getNodeId().isEmpty()) {
+            pkt.setNodeId(nodeIdByIp.getOrDefault(ip, ""));
+        } else {
+            nodeIdByIp.put(ip, pkt.getNodeId());
         }
     }
 
-    private String getLocalIP() {
-        return DiscoveryService.getEffectiveLocalIP();
+    String getLocalIP() {
+        Transport t = transport;
+        return (t != null) ? t.getLocalIP() : DiscoveryService.getEffectiveLocalIP();
     }
 
 }
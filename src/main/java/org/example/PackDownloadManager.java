@@ -0,0 +1,127 @@
+package org.example;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+// Downloads one pack of a folder listing like a single file, then cuts it into its member files. Members are
+// checked against their own hashes, since the pack's hash only names its contents.
+public class PackDownloadManager extends MultiSourceDownloadManager {
+
+    private final FolderDownload job;
+    private final List<FolderListing.Entry> members;
+
+    public PackDownloadManager(P2PNode node, String packHash, long packSize, File destFolder, Set<PeerInfo> peers,
+                               FolderDownload job, List<FolderListing.Entry> members) {
+        super(node, packHash, packSize, destFolder, peers);
+        this.job = job;
+        this.members = members;
+    }
+
+    // a pack only exists on the node that listed it, so there is no chunk manifest to rebuild from
+    @Override
+    protected void prefillFromLocalChunks(String manifestSourceIp) {
+    }
+
+    // the pack is served by its listing node only, so the swarm gains nothing from hearing about it
+    @Override
+    protected boolean announcesHave() {
+        return false;
+    }
+
+    @Override
+    protected void finalizeDownload() {
+        if (!claimCompletion()) return;
+        int written = 0;
+        for (FolderListing.Entry e : members) {
+            File target = job.targetFor(e);
+            boolean ok = target != null && unpack(e, target);
+            if (ok) written++;
+            job.onPackedFile(e, ok);
+        }
+        // the members are the output; there is no single file to point at
+        markCompleted(null);
+        System.out.println("[PackDownloadManager] Unpacked " + written + "/" + members.size() + " file(s) from pack="
+                + fileHash);
+        node.fireDownloadProgress(fileHash, 100.0);
+        node.onDownloadEnded(fileHash);
+    }
+
+    // checks the member against its hash while it is still in the pack's chunks, then writes it once and shares
+    // it from those same bytes; nothing is read back from disk
+    private boolean unpack(FolderListing.Entry e, File target) {
+        List<ByteBuffer> content = slices(e);
+        if (content == null) {
+            return false;
+        }
+        FileHasher.Digests digests;
+        try {
+            digests = FileHasher.hash(content);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+        if (!digests.getSha1().toHex().equalsIgnoreCase(e.getFileHash())) {
+            System.err.println("[PackDownloadManager] " + e.getPath() + " does not match hash=" + e.getFileHash());
+            return false;
+        }
+        if (!writeMember(content, target)) {
+            return false;
+        }
+        List<InputStream> streams = new ArrayList<>();
+        for (ByteBuffer b : content) {
+            streams.add(new ByteArrayInputStream(b.array(), b.arrayOffset() + b.position(), b.remaining()));
+        }
+        node.shareUnpackedFile(FileMetadata.ofWritten(target, digests),
+                new SequenceInputStream(Collections.enumeration(streams)));
+        return true;
+    }
+
+    // the member's bytes as views into the pack's chunks, or null if any of them is missing
+    private List<ByteBuffer> slices(FolderListing.Entry e) {
+        List<ByteBuffer> out = new ArrayList<>();
+        long pos = e.getPackOffset();
+        long end = pos + e.getFileSize();
+        while (pos < end) {
+            int index = (int) (pos / CHUNK_SIZE);
+            int off = (int) (pos % CHUNK_SIZE);
+            byte[] chunk = (index < chunkBuffers.length) ? chunkBuffers[index] : null;
+            int n = (int) Math.min(CHUNK_SIZE - off, end - pos);
+            if (chunk == null || chunk.length < off + n) {
+                return null;
+            }
+            out.add(ByteBuffer.wrap(chunk, off, n));
+            pos += n;
+        }
+        return out;
+    }
+
+    private boolean writeMember(List<ByteBuffer> content, File target) {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            return false;
+        }
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (ByteBuffer b : content) {
+                ByteBuffer view = b.duplicate();
+                while (view.hasRemaining()) {
+                    out.write(view);
+                }
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+}
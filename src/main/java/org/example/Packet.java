@@ -1,7 +1,11 @@
 package org.example;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class Packet {
@@ -13,6 +17,23 @@ public class Packet {
         SEARCH_RESPONSE(4),
         CHUNK_REQUEST(5),
         CHUNK_RESPONSE(6),
+        CHUNK_BUSY(7),
+        CHUNK_NACK(8),
+        HAVE(9),
+        DHT_PING(10),
+        DHT_PONG(11),
+        DHT_FIND_NODE(12),
+        DHT_NODES(13),
+        DHT_STORE(14),
+        DHT_FIND_VALUE(15),
+        DHT_VALUES(16),
+        MANIFEST_REQUEST(20),
+        MANIFEST_RESPONSE(21),
+        DELTA_REQUEST(22),
+        DELTA_RESPONSE(23),
+        FOLDER_LIST(24),
+        FOLDER_LIST_RESPONSE(25),
+        BATCH(30),
         OTHER(99);
 
         private final int code;
@@ -28,6 +49,27 @@ public class Packet {
         }
     }
 
+    // fixed part of an encoded packet with every string and the payload empty
+    public static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 8 + 4 * 5;
+
+    public static final int WIRE_V1 = 1;
+    public static final int WIRE_V2 = 2;
+    // v1 starts with a big-endian int type code, so its first byte is always 0
+    private static final int V2_MAGIC = 0xB2;
+    // set on the type byte when a hot-path packet uses its fixed v2 layout
+    private static final int FIXED_LAYOUT = 0x80;
+
+    // generic v2 layout: a varint bitmap says which optional fields follow
+    private static final int F_TTL = 1;
+    private static final int F_CHUNK_INDEX = 1 << 1;
+    private static final int F_FILE_SIZE = 1 << 2;
+    private static final int F_HASH_BINARY = 1 << 3;
+    private static final int F_HASH_TEXT = 1 << 4;
+    private static final int F_CHUNK_DATA = 1 << 5;
+    private static final int F_MESSAGE = 1 << 6;
+    private static final int F_NODE_UUID = 1 << 7;
+    private static final int F_NODE_TEXT = 1 << 8;
+
     private static final AtomicInteger GLOBAL_SEQ = new AtomicInteger(0);
     public static int getNextSeqNumber() {
         return GLOBAL_SEQ.incrementAndGet();
@@ -46,6 +88,9 @@ public class Packet {
 
 
     private String nodeId;
+    private int wireVersion = WIRE_V1;
+    // where the datagram really came from; never on the wire, unlike sourceIP which a v1 sender fills in itself
+    private String datagramIP = "";
 
     public Packet() {
         this.type = PacketType.OTHER;
@@ -77,6 +122,8 @@ public class Packet {
     public void setTtl(int t) { this.ttl = t; }
     public String getSourceIP() { return sourceIP; }
     public void setSourceIP(String s) { this.sourceIP = s; }
+    public String getDatagramIP() { return datagramIP; }
+    public void setDatagramIP(String ip) { this.datagramIP = ip; }
     public String getFileHash() { return fileHash; }
     public void setFileHash(String fh) { this.fileHash = fh; }
     public int getChunkIndex() { return chunkIndex; }
@@ -96,6 +143,174 @@ public class Packet {
         this.nodeId = nodeId;
     }
 
+    // the format this packet arrived in
+    public int getWireVersion() {
+        return wireVersion;
+    }
+
+    public byte[] toBytes(int version) {
+        return (version >= WIRE_V2) ? toBytesV2() : toBytes();
+    }
+
+    // v2 never carries the source IP: receivers take it from the datagram
+    private byte[] toBytesV2() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 + ((chunkData != null) ? chunkData.length : 0));
+        out.write(V2_MAGIC);
+        byte[] hashBytes = binaryHash(fileHash);
+        boolean fixed = (type == PacketType.CHUNK_REQUEST || type == PacketType.CHUNK_RESPONSE)
+                && hashBytes != null && chunkIndex >= 0 && ttl <= 1 && message.isEmpty();
+        if (fixed) {
+            // the node id is left out too; receivers know it from the peer's earlier packets
+            out.write(type.getCode() | FIXED_LAYOUT);
+            writeVarLong(out, seqNumber & 0xFFFFFFFFL);
+            writeVarLong(out, chunkIndex);
+            out.write(hashBytes.length);
+            out.write(hashBytes, 0, hashBytes.length);
+            if (type == PacketType.CHUNK_RESPONSE) {
+                writeVarLong(out, fileSize);
+                writeBytes(out, (chunkData != null) ? chunkData : new byte[0]);
+            }
+            return out.toByteArray();
+        }
+
+        byte[] nodeUuid = binaryNodeId(nodeId);
+        int flags = 0;
+        if (ttl != 0) flags |= F_TTL;
+        if (chunkIndex != -1) flags |= F_CHUNK_INDEX;
+        if (fileSize != 0) flags |= F_FILE_SIZE;
+        if (hashBytes != null) flags |= F_HASH_BINARY;
+        else if (!fileHash.isEmpty()) flags |= F_HASH_TEXT;
+        if (chunkData != null && chunkData.length > 0) flags |= F_CHUNK_DATA;
+        if (!message.isEmpty()) flags |= F_MESSAGE;
+        if (nodeUuid != null) flags |= F_NODE_UUID;
+        else if (nodeId != null && !nodeId.isEmpty()) flags |= F_NODE_TEXT;
+
+        out.write(type.getCode());
+        writeVarLong(out, flags);
+        writeVarLong(out, seqNumber & 0xFFFFFFFFL);
+        if ((flags & F_TTL) != 0) writeVarLong(out, ttl & 0xFFFFFFFFL);
+        if ((flags & F_CHUNK_INDEX) != 0) writeVarLong(out, chunkIndex & 0xFFFFFFFFL);
+        if ((flags & F_FILE_SIZE) != 0) writeVarLong(out, fileSize);
+        if ((flags & F_HASH_BINARY) != 0) {
+            out.write(hashBytes.length);
+            out.write(hashBytes, 0, hashBytes.length);
+        }
+        if ((flags & F_HASH_TEXT) != 0) writeBytes(out, fileHash.getBytes(StandardCharsets.UTF_8));
+        if ((flags & F_CHUNK_DATA) != 0) writeBytes(out, chunkData);
+        if ((flags & F_MESSAGE) != 0) writeBytes(out, message.getBytes(StandardCharsets.UTF_8));
+        if ((flags & F_NODE_UUID) != 0) out.write(nodeUuid, 0, nodeUuid.length);
+        if ((flags & F_NODE_TEXT) != 0) writeBytes(out, nodeId.getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    private static Packet fromBytesV2(byte[] data) {
+        Packet pkt = new Packet();
+        pkt.wireVersion = WIRE_V2;
+        try {
+            ByteBuffer in = ByteBuffer.wrap(data);
+            in.get();
+            int typeByte = in.get() & 0xff;
+            pkt.type = PacketType.fromCode(typeByte & ~FIXED_LAYOUT);
+            if ((typeByte & FIXED_LAYOUT) != 0) {
+                pkt.seqNumber = (int) readVarLong(in);
+                pkt.ttl = 1;
+                pkt.chunkIndex = (int) readVarLong(in);
+                byte[] hash = new byte[in.get() & 0xff];
+                in.get(hash);
+                pkt.fileHash = HashKey.toHex(hash);
+                if (pkt.type == PacketType.CHUNK_RESPONSE) {
+                    pkt.fileSize = readVarLong(in);
+                    byte[] payload = readBytes(in);
+                    pkt.chunkData = (payload.length > 0) ? payload : null;
+                }
+                return pkt;
+            }
+
+            int flags = (int) readVarLong(in);
+            pkt.seqNumber = (int) readVarLong(in);
+            if ((flags & F_TTL) != 0) pkt.ttl = (int) readVarLong(in);
+            if ((flags & F_CHUNK_INDEX) != 0) pkt.chunkIndex = (int) readVarLong(in);
+            if ((flags & F_FILE_SIZE) != 0) pkt.fileSize = readVarLong(in);
+            if ((flags & F_HASH_BINARY) != 0) {
+                byte[] hash = new byte[in.get() & 0xff];
+                in.get(hash);
+                pkt.fileHash = HashKey.toHex(hash);
+            }
+            if ((flags & F_HASH_TEXT) != 0) pkt.fileHash = new String(readBytes(in), StandardCharsets.UTF_8);
+            if ((flags & F_CHUNK_DATA) != 0) pkt.chunkData = readBytes(in);
+            if ((flags & F_MESSAGE) != 0) pkt.message = new String(readBytes(in), StandardCharsets.UTF_8);
+            if ((flags & F_NODE_UUID) != 0) {
+                pkt.nodeId = new UUID(in.getLong(), in.getLong()).toString();
+            }
+            if ((flags & F_NODE_TEXT) != 0) pkt.nodeId = new String(readBytes(in), StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return pkt;
+    }
+
+    // only hashes whose hex form round-trips exactly may travel in binary
+    private static byte[] binaryHash(String hex) {
+        HashKey key = HashKey.tryFromHex(hex);
+        if (key == null || key.length() > 255 || !key.toHex().equals(hex)) {
+            return null;
+        }
+        return key.toBytes();
+    }
+
+    private static byte[] binaryNodeId(String id) {
+        if (id == null || id.length() != 36) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            if (!uuid.toString().equals(id)) {
+                return null;
+            }
+            return ByteBuffer.allocate(16)
+                    .putLong(uuid.getMostSignificantBits())
+                    .putLong(uuid.getLeastSignificantBits())
+                    .array();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] b) {
+        writeVarLong(out, b.length);
+        out.write(b, 0, b.length);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        long len = readVarLong(in);
+        if (len < 0 || len > in.remaining()) {
+            throw new IllegalArgumentException("Field length " + len + " exceeds packet");
+        }
+        byte[] b = new byte[(int) len];
+        in.get(b);
+        return b;
+    }
+
     public byte[] toBytes() {
         byte[] sourceIPBytes = sourceIP.getBytes(StandardCharsets.UTF_8);
         int sourceIpLen = sourceIPBytes.length;
@@ -149,7 +364,48 @@ public class Packet {
         return buffer.array();
     }
 
+    // a BATCH carries several whole encoded packets for one peer, each prefixed with its length
+    public static byte[] toBatchBytes(List<byte[]> packets) {
+        int size = 0;
+        for (byte[] p : packets) {
+            size += 4 + p.length;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        boolean allV2 = true;
+        for (byte[] p : packets) {
+            payload.putInt(p.length);
+            payload.put(p);
+            allV2 &= (p[0] & 0xff) == V2_MAGIC;
+        }
+        Packet batch = new Packet();
+        batch.type = PacketType.BATCH;
+        batch.chunkData = payload.array();
+        // the frame can only be as new as the oldest packet inside it
+        return batch.toBytes(allV2 ? WIRE_V2 : WIRE_V1);
+    }
+
+    public List<Packet> unbatch() {
+        List<Packet> packets = new ArrayList<>();
+        if (type != PacketType.BATCH || chunkData == null) {
+            return packets;
+        }
+        ByteBuffer payload = ByteBuffer.wrap(chunkData);
+        while (payload.remaining() >= 4) {
+            int len = payload.getInt();
+            if (len <= 0 || len > payload.remaining()) {
+                break;
+            }
+            byte[] p = new byte[len];
+            payload.get(p);
+            packets.add(fromBytes(p));
+        }
+        return packets;
+    }
+
     public static Packet fromBytes(byte[] data) {
+        if (data.length > 0 && (data[0] & 0xff) == V2_MAGIC) {
+            return fromBytesV2(data);
+        }
         Packet pkt = new Packet();
         try {
             ByteBuffer buffer = ByteBuffer.wrap(data);
@@ -0,0 +1,232 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// What a node learned about the network, kept across restarts: its own id, peers it has talked to with
+// their RTT and throughput, and which peers held which files. One record per line:
+//   node <id>
+//   peer <ip> <lastSeenMillis> <srttMs> <bytesPerSec>
+//   file <hash> <size> <ip> <lastSeenMillis>
+public class PeerCache {
+
+    // older records are dropped on load; a week covers weekends and vacations of casual peers
+    static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final int MAX_PEERS = 4096;
+    private static final int MAX_LOCATIONS = 64 * 1024;
+    // throughput is averaged over windows of this length; longer gaps mean the peer was idle, not slow
+    private static final long THROUGHPUT_WINDOW_MS = 1000;
+    private static final long THROUGHPUT_IDLE_MS = 5000;
+
+    public static class PeerRecord {
+        private final String ip;
+        private volatile long lastSeen;
+        private volatile double srttMs;
+        private volatile double bytesPerSec;
+        private long windowStart;
+        private long windowBytes;
+
+        PeerRecord(String ip, long lastSeen, double srttMs, double bytesPerSec) {
+            this.ip = ip;
+            this.lastSeen = lastSeen;
+            this.srttMs = srttMs;
+            this.bytesPerSec = bytesPerSec;
+        }
+
+        public String getIpAddress() { return ip; }
+        public long getLastSeen() { return lastSeen; }
+        public double getSrttMs() { return srttMs; }
+        public double getBytesPerSec() { return bytesPerSec; }
+
+        synchronized void addBytes(long bytes, long now) {
+            if (now - windowStart > THROUGHPUT_IDLE_MS) {
+                windowStart = now;
+                windowBytes = 0;
+            }
+            windowBytes += bytes;
+            long elapsed = now - windowStart;
+            if (elapsed >= THROUGHPUT_WINDOW_MS) {
+                double rate = windowBytes * 1000.0 / elapsed;
+                bytesPerSec = (bytesPerSec <= 0) ? rate : 0.75 * bytesPerSec + 0.25 * rate;
+                windowStart = now;
+                windowBytes = 0;
+            }
+        }
+    }
+
+    public static class LocationRecord {
+        private final String fileHash;
+        private final long fileSize;
+        private final String ip;
+        private volatile long lastSeen;
+
+        LocationRecord(String fileHash, long fileSize, String ip, long lastSeen) {
+            this.fileHash = fileHash;
+            this.fileSize = fileSize;
+            this.ip = ip;
+            this.lastSeen = lastSeen;
+        }
+
+        public String getFileHash() { return fileHash; }
+        public long getFileSize() { return fileSize; }
+        public String getIpAddress() { return ip; }
+        public long getLastSeen() { return lastSeen; }
+    }
+
+    private final File file;
+    private volatile String nodeId;
+    private final Map<String, PeerRecord> peers = new ConcurrentHashMap<>();
+    // hash -> ip -> record
+    private final Map<String, Map<String, LocationRecord>> locations = new ConcurrentHashMap<>();
+
+    public PeerCache(File file) {
+        this.file = file;
+    }
+
+    public void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int lineNo = 0;
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                String[] parts = line.trim().split("\\s+");
+                try {
+                    switch (parts[0]) {
+                        case "node":
+                            if (parts.length >= 2) nodeId = parts[1];
+                            break;
+                        case "peer":
+                            long seen = Long.parseLong(parts[2]);
+                            if (now - seen <= MAX_AGE_MS) {
+                                peers.put(parts[1], new PeerRecord(parts[1], seen,
+                                        Double.parseDouble(parts[3]), Double.parseDouble(parts[4])));
+                            }
+                            break;
+                        case "file":
+                            long at = Long.parseLong(parts[4]);
+                            if (now - at <= MAX_AGE_MS) {
+                                locations.computeIfAbsent(parts[1], k -> new ConcurrentHashMap<>())
+                                        .put(parts[3], new LocationRecord(parts[1], Long.parseLong(parts[2]), parts[3], at));
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("[PeerCache] Skipping bad line " + lineNo + " in " + file);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("[PeerCache] Loaded " + peers.size() + " peer(s) and " + locations.size()
+                + " file location(s) from " + file);
+    }
+
+    // written to a sibling file first, so a crash mid-write leaves the previous state intact
+    public synchronized void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(new FileWriter(tmp))) {
+            if (nodeId != null) {
+                out.println("node " + nodeId);
+            }
+            for (PeerRecord p : peers.values()) {
+                out.printf(Locale.ROOT, "peer %s %d %.1f %.0f%n", p.ip, p.lastSeen, p.srttMs, p.bytesPerSec);
+            }
+            for (Map<String, LocationRecord> byIp : locations.values()) {
+                for (LocationRecord r : byIp.values()) {
+                    out.printf(Locale.ROOT, "file %s %d %s %d%n", r.fileHash, r.fileSize, r.ip, r.lastSeen);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public List<PeerRecord> getPeers() {
+        return new ArrayList<>(peers.values());
+    }
+
+    public List<LocationRecord> getLocations() {
+        List<LocationRecord> all = new ArrayList<>();
+        for (Map<String, LocationRecord> byIp : locations.values()) {
+            all.addAll(byIp.values());
+        }
+        return all;
+    }
+
+    public void notePeer(String ip, long now) {
+        PeerRecord p = peers.get(ip);
+        if (p == null) {
+            if (peers.size() >= MAX_PEERS) return;
+            p = peers.computeIfAbsent(ip, k -> new PeerRecord(k, now, -1, 0));
+        }
+        p.lastSeen = now;
+    }
+
+    public void noteRtt(String ip, double srttMs) {
+        PeerRecord p = peers.get(ip);
+        if (p != null && srttMs >= 0) {
+            p.srttMs = srttMs;
+        }
+    }
+
+    public void noteBytes(String ip, long bytes, long now) {
+        PeerRecord p = peers.get(ip);
+        if (p != null) {
+            p.addBytes(bytes, now);
+        }
+    }
+
+    public void noteLocation(String fileHash, long fileSize, String ip, long now) {
+        Map<String, LocationRecord> byIp = locations.get(fileHash);
+        if (byIp == null) {
+            if (locations.size() >= MAX_LOCATIONS) return;
+            byIp = locations.computeIfAbsent(fileHash, k -> new ConcurrentHashMap<>());
+        }
+        LocationRecord r = byIp.get(ip);
+        if (r != null && (fileSize <= 0 || r.fileSize == fileSize)) {
+            r.lastSeen = now;
+        } else {
+            byIp.put(ip, new LocationRecord(fileHash, fileSize, ip, now));
+        }
+    }
+
+    // a peer that failed revalidation takes all its location records with it
+    public void forgetPeer(String ip) {
+        peers.remove(ip);
+        for (Map<String, LocationRecord> byIp : locations.values()) {
+            byIp.remove(ip);
+        }
+        locations.values().removeIf(Map::isEmpty);
+    }
+}
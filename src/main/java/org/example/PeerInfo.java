@@ -16,4 +16,15 @@ public class PeerInfo {
     public long getFileSize() {
         return fileSize;
     }
+
+    // one entry per address, however often a peer reports the same file
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PeerInfo && ipAddress.equals(((PeerInfo) o).ipAddress);
+    }
+
+    @Override
+    public int hashCode() {
+        return ipAddress.hashCode();
+    }
 }
@@ -0,0 +1,67 @@
+package org.example;
+
+public class RttEstimator {
+
+    // Jacobson/Karels gains and RTO bounds (RFC 6298), in milliseconds
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+    private static final int K = 4;
+    private static final double CLOCK_GRANULARITY_MS = 1;
+    public static final long INITIAL_RTO_MS = 1000;
+    public static final long MIN_RTO_MS = 20;
+    public static final long MAX_RTO_MS = 60000;
+
+    private double srtt = -1;
+    private double rttvar;
+    private long rto = INITIAL_RTO_MS;
+    private int backoff;
+    private long samples;
+
+    public synchronized void addSample(double rttMs) {
+        if (srtt < 0) {
+            srtt = rttMs;
+            rttvar = rttMs / 2;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rttMs);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rttMs;
+        }
+        samples++;
+        backoff = 0;
+        rto = clamp((long) Math.ceil(srtt + Math.max(CLOCK_GRANULARITY_MS, K * rttvar)));
+    }
+
+    // called when a timer fires without progress; doubles the effective RTO
+    public synchronized void onTimeout() {
+        if (backoff < 16) backoff++;
+    }
+
+    public synchronized long getRtoMs() {
+        return clamp(rto << backoff);
+    }
+
+    public synchronized double getSrttMs() {
+        return srtt;
+    }
+
+    public synchronized double getRttVarMs() {
+        return rttvar;
+    }
+
+    public synchronized long getSampleCount() {
+        return samples;
+    }
+
+    public synchronized int getBackoff() {
+        return backoff;
+    }
+
+    private static long clamp(long rtoMs) {
+        return Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, rtoMs));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("srtt=%.1fms rttvar=%.1fms rto=%dms samples=%d backoff=%d",
+                srtt, rttvar, getRtoMs(), samples, backoff);
+    }
+}
@@ -0,0 +1,204 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// A search evaluated by the responder: every term must appear in the file name, the extension must be in the
+// include set (if any) and not in the exclude set, the size must be in range, and at most limit results come back.
+// A query with only a single term goes on the wire as the bare term, so older nodes still answer it.
+public class SearchQuery {
+
+    // a control character can't start a typed query, so legacy substring queries never parse as structured
+    static final String WIRE_PREFIX = "\u0001q1";
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+
+    private final List<String> terms = new ArrayList<>();
+    private final Set<String> includeExt = new LinkedHashSet<>();
+    private final Set<String> excludeExt = new LinkedHashSet<>();
+    private long minSize = -1;
+    private long maxSize = -1;
+    private int limit;
+
+    public SearchQuery() {
+    }
+
+    public List<String> getTerms() { return terms; }
+    public Set<String> getIncludeExtensions() { return includeExt; }
+    public Set<String> getExcludeExtensions() { return excludeExt; }
+    public long getMinSize() { return minSize; }
+    public long getMaxSize() { return maxSize; }
+    public int getLimit() { return limit; }
+
+    public SearchQuery addTerm(String term) {
+        String t = term.trim().toLowerCase(Locale.ROOT);
+        if (!t.isEmpty()) terms.add(t);
+        return this;
+    }
+
+    public SearchQuery includeExtension(String ext) {
+        String e = normalizeExt(ext);
+        if (!e.isEmpty()) includeExt.add(e);
+        return this;
+    }
+
+    public SearchQuery excludeExtension(String ext) {
+        String e = normalizeExt(ext);
+        if (!e.isEmpty()) excludeExt.add(e);
+        return this;
+    }
+
+    // -1 leaves that side of the range open
+    public SearchQuery sizeRange(long min, long max) {
+        this.minSize = min;
+        this.maxSize = max;
+        return this;
+    }
+
+    // 0 means the responder's default
+    public SearchQuery limit(int limit) {
+        this.limit = Math.max(0, Math.min(limit, MAX_LIMIT));
+        return this;
+    }
+
+    // what the responder will actually return at most
+    public int effectiveLimit() {
+        return limit > 0 ? limit : DEFAULT_LIMIT;
+    }
+
+    public boolean isEmpty() {
+        return terms.isEmpty() && includeExt.isEmpty() && minSize < 0 && maxSize < 0;
+    }
+
+    public boolean matches(String fileName, long fileSize) {
+        if (minSize >= 0 && fileSize < minSize) return false;
+        if (maxSize >= 0 && fileSize > maxSize) return false;
+        String name = fileName.toLowerCase(Locale.ROOT);
+        if (!includeExt.isEmpty() || !excludeExt.isEmpty()) {
+            String ext = extensionOf(name);
+            if (!includeExt.isEmpty() && !includeExt.contains(ext)) return false;
+            if (excludeExt.contains(ext)) return false;
+        }
+        for (String t : terms) {
+            if (!name.contains(t)) return false;
+        }
+        return true;
+    }
+
+    // typed syntax: words are terms, plus ext:mp3,flac  -ext:tmp  size:1M-700M  size:>10K  size:<2G  limit:50
+    public static SearchQuery fromUserInput(String input) {
+        SearchQuery q = new SearchQuery();
+        for (String token : input.trim().split("\\s+")) {
+            String lower = token.toLowerCase(Locale.ROOT);
+            try {
+                if (lower.startsWith("ext:")) {
+                    for (String e : lower.substring(4).split(",")) q.includeExtension(e);
+                } else if (lower.startsWith("-ext:")) {
+                    for (String e : lower.substring(5).split(",")) q.excludeExtension(e);
+                } else if (lower.startsWith("size:")) {
+                    q.parseSize(lower.substring(5));
+                } else if (lower.startsWith("limit:")) {
+                    q.limit(Integer.parseInt(lower.substring(6)));
+                } else {
+                    q.addTerm(token);
+                }
+            } catch (NumberFormatException e) {
+                // a malformed filter is taken literally rather than silently dropped
+                q.addTerm(token);
+            }
+        }
+        return q;
+    }
+
+    private void parseSize(String spec) {
+        if (spec.startsWith(">")) {
+            minSize = parseBytes(spec.substring(1));
+        } else if (spec.startsWith("<")) {
+            maxSize = parseBytes(spec.substring(1));
+        } else {
+            int dash = spec.indexOf('-');
+            if (dash < 0) throw new NumberFormatException(spec);
+            minSize = dash == 0 ? -1 : parseBytes(spec.substring(0, dash));
+            maxSize = dash == spec.length() - 1 ? -1 : parseBytes(spec.substring(dash + 1));
+        }
+    }
+
+    // 1500, 10k, 4M, 2g
+    static long parseBytes(String s) {
+        s = s.trim().toLowerCase(Locale.ROOT);
+        long mult = 1;
+        char last = s.isEmpty() ? ' ' : s.charAt(s.length() - 1);
+        if (last == 'k') mult = 1024;
+        else if (last == 'm') mult = 1024L * 1024;
+        else if (last == 'g') mult = 1024L * 1024 * 1024;
+        if (mult > 1) s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) * mult;
+    }
+
+    // SEARCH message: "\u0001q1 t=foo t=bar ext=mp3,flac -ext=tmp min=1024 max=4096 lim=50"
+    public String toWire() {
+        if (terms.size() == 1 && includeExt.isEmpty() && excludeExt.isEmpty()
+                && minSize < 0 && maxSize < 0 && limit == 0) {
+            return terms.get(0);
+        }
+        StringBuilder sb = new StringBuilder(WIRE_PREFIX);
+        for (String t : terms) sb.append(" t=").append(t);
+        if (!includeExt.isEmpty()) sb.append(" ext=").append(String.join(",", includeExt));
+        if (!excludeExt.isEmpty()) sb.append(" -ext=").append(String.join(",", excludeExt));
+        if (minSize >= 0) sb.append(" min=").append(minSize);
+        if (maxSize >= 0) sb.append(" max=").append(maxSize);
+        if (limit > 0) sb.append(" lim=").append(limit);
+        return sb.toString();
+    }
+
+    // anything without the prefix is a legacy query: the whole message is one substring
+    public static SearchQuery fromWire(String message) {
+        SearchQuery q = new SearchQuery();
+        if (!message.startsWith(WIRE_PREFIX)) {
+            String t = message.toLowerCase(Locale.ROOT);
+            if (!t.isEmpty()) q.terms.add(t);
+            return q;
+        }
+        for (String token : message.substring(WIRE_PREFIX.length()).trim().split("\\s+")) {
+            int eq = token.indexOf('=');
+            if (eq <= 0) continue;
+            String key = token.substring(0, eq);
+            String value = token.substring(eq + 1);
+            try {
+                switch (key) {
+                    case "t": q.addTerm(value); break;
+                    case "ext": for (String e : value.split(",")) q.includeExtension(e); break;
+                    case "-ext": for (String e : value.split(",")) q.excludeExtension(e); break;
+                    case "min": q.minSize = Long.parseLong(value); break;
+                    case "max": q.maxSize = Long.parseLong(value); break;
+                    case "lim": q.limit(Integer.parseInt(value)); break;
+                    default: break; // unknown keys come from newer nodes; ignoring them only widens the match
+                }
+            } catch (NumberFormatException e) {
+                // a malformed filter is dropped, like an unknown one
+            }
+        }
+        return q;
+    }
+
+    static String extensionOf(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return (dot < 0 || dot == fileName.length() - 1) ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static String normalizeExt(String ext) {
+        String e = ext.trim().toLowerCase(Locale.ROOT);
+        if (e.startsWith("*.")) e = e.substring(2);
+        else if (e.startsWith(".")) e = e.substring(1);
+        return e;
+    }
+
+    @Override
+    public String toString() {
+        String wire = toWire();
+        return wire.startsWith(WIRE_PREFIX) ? wire.substring(WIRE_PREFIX.length()).trim() : wire;
+    }
+}
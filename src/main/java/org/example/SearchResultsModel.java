@@ -0,0 +1,176 @@
+package org.example;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// One row per file hash, however many peers report it. Responses are parsed on the caller's thread and
+// merged into the table on the EDT in timer-driven batches, so a flood of results costs one repaint per tick.
+public final class SearchResultsModel extends AbstractTableModel {
+
+    private static final String[] COLUMNS = {"File Name", "File Hash", "File Size", "Peers"};
+    private static final int FLUSH_INTERVAL_MS = 100;
+    // bounds the EDT time spent per tick; the rest waits for the next one
+    private static final int MAX_MERGES_PER_FLUSH = 20000;
+
+    public static class Result {
+        private final String fileName;
+        private final String fileHash;
+        private final long fileSize;
+        private final Set<String> peers = new HashSet<>();
+
+        Result(String fileName, String fileHash, long fileSize) {
+            this.fileName = fileName;
+            this.fileHash = fileHash;
+            this.fileSize = fileSize;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getFileHash() {
+            return fileHash;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public int getPeerCount() {
+            return peers.size();
+        }
+    }
+
+    private static class Incoming {
+        final String fileName;
+        final String fileHash;
+        final long fileSize;
+        final String peerIp;
+
+        Incoming(String fileName, String fileHash, long fileSize, String peerIp) {
+            this.fileName = fileName;
+            this.fileHash = fileHash;
+            this.fileSize = fileSize;
+            this.peerIp = peerIp;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Incoming> pending = new ConcurrentLinkedQueue<>();
+    // EDT only
+    private final List<Result> rows = new ArrayList<>();
+    private final Map<String, Integer> rowByHash = new HashMap<>();
+    private final Timer flushTimer;
+
+    public SearchResultsModel() {
+        flushTimer = new Timer(FLUSH_INTERVAL_MS, e -> flush());
+        flushTimer.setCoalesce(true);
+        flushTimer.start();
+    }
+
+    // safe from any thread
+    public void offer(String fromIp, String responseData) {
+        for (String line : responseData.split("\n")) {
+            String[] parts = line.split("\\|");
+            if (parts.length < 3) continue;
+            long size;
+            try {
+                size = Long.parseLong(parts[2].trim());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            pending.add(new Incoming(parts[0], parts[1], size, fromIp));
+        }
+    }
+
+    private void flush() {
+        if (pending.isEmpty()) return;
+        int firstNew = rows.size();
+        int minUpdated = Integer.MAX_VALUE;
+        int maxUpdated = -1;
+        Incoming in;
+        for (int n = 0; n < MAX_MERGES_PER_FLUSH && (in = pending.poll()) != null; n++) {
+            Integer row = rowByHash.get(in.fileHash);
+            if (row == null) {
+                Result r = new Result(in.fileName, in.fileHash, in.fileSize);
+                r.peers.add(in.peerIp);
+                rowByHash.put(in.fileHash, rows.size());
+                rows.add(r);
+            } else if (rows.get(row).peers.add(in.peerIp) && row < firstNew) {
+                minUpdated = Math.min(minUpdated, row);
+                maxUpdated = Math.max(maxUpdated, row);
+            }
+        }
+        if (rows.size() > firstNew) {
+            fireTableRowsInserted(firstNew, rows.size() - 1);
+        }
+        if (maxUpdated >= 0) {
+            fireTableRowsUpdated(minUpdated, maxUpdated);
+        }
+    }
+
+    public void clear() {
+        pending.clear();
+        Runnable reset = () -> {
+            pending.clear();
+            rows.clear();
+            rowByHash.clear();
+            fireTableDataChanged();
+        };
+        if (SwingUtilities.isEventDispatchThread()) {
+            reset.run();
+        } else {
+            SwingUtilities.invokeLater(reset);
+        }
+    }
+
+    public Result getResult(int row) {
+        return rows.get(row);
+    }
+
+    public void dispose() {
+        flushTimer.stop();
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return (column == 2) ? Long.class : (column == 3) ? Integer.class : String.class;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Result r = rows.get(row);
+        switch (column) {
+            case 0:
+                return r.fileName;
+            case 1:
+                return r.fileHash;
+            case 2:
+                return r.fileSize;
+            default:
+                return r.peers.size();
+        }
+    }
+}
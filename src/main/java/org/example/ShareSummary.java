@@ -0,0 +1,179 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Bloom filter over the character trigrams of every shared file name. Searches are substring matches, so whole
+// words would miss "beat" in "beatles"; every trigram of a term appearing in the filter is what a substring
+// match needs. The local side keeps a counter per bit so a removed file clears its bits again without a rebuild.
+public class ShareSummary {
+
+    static final int BITS = 32 * 1024;
+    private static final int HASHES = 3;
+    private static final int GRAM = 3;
+
+    private final byte[] counts;
+    private final long[] bits;
+    private int version;
+
+    public ShareSummary() {
+        this.counts = new byte[BITS];
+        this.bits = new long[BITS / 64];
+    }
+
+    private ShareSummary(long[] bits, int version) {
+        this.counts = null;
+        this.bits = bits;
+        this.version = version;
+    }
+
+    // bumped by every change, so peers can tell a summary they hold is out of date
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    public synchronized void add(String fileName) {
+        update(fileName, 1);
+    }
+
+    public synchronized void remove(String fileName) {
+        update(fileName, -1);
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(counts, (byte) 0);
+        Arrays.fill(bits, 0);
+        version++;
+    }
+
+    private void update(String fileName, int delta) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        for (int i = 0; i + GRAM <= name.length(); i++) {
+            int h1 = mix(name.charAt(i), name.charAt(i + 1), name.charAt(i + 2));
+            int h2 = Integer.rotateLeft(h1, 16) | 1;
+            for (int k = 0; k < HASHES; k++) {
+                int bit = Math.floorMod(h1 + k * h2, BITS);
+                // a saturated counter stays set for good: a false positive, never a false negative
+                int c = counts[bit] & 0xff;
+                // and an empty one has nothing to remove; going below zero would wrap it to a saturated 0xff
+                if (c == 0xff || (c == 0 && delta < 0)) continue;
+                c += delta;
+                counts[bit] = (byte) c;
+                if (c == 0) bits[bit >>> 6] &= ~(1L << bit);
+                else bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+        version++;
+    }
+
+    // false only when no shared file can match; a query with nothing to look up matches everything
+    public synchronized boolean mightMatch(SearchQuery query) {
+        for (String term : query.getTerms()) {
+            if (term.length() >= GRAM && !containsAll(term)) return false;
+        }
+        if (!query.getIncludeExtensions().isEmpty()) {
+            boolean any = false;
+            for (String ext : query.getIncludeExtensions()) {
+                String suffix = "." + ext;
+                if (suffix.length() < GRAM || containsAll(suffix)) {
+                    any = true;
+                    break;
+                }
+            }
+            if (!any) return false;
+        }
+        return true;
+    }
+
+    // whether the summary can rule anything out for this query; if not, searching by summary saves nothing
+    public static boolean isRoutable(SearchQuery query) {
+        for (String term : query.getTerms()) {
+            if (term.length() >= GRAM) return true;
+        }
+        for (String ext : query.getIncludeExtensions()) {
+            if (ext.length() + 1 < GRAM) return false;
+        }
+        return !query.getIncludeExtensions().isEmpty();
+    }
+
+    private boolean containsAll(String s) {
+        for (int i = 0; i + GRAM <= s.length(); i++) {
+            int h1 = mix(s.charAt(i), s.charAt(i + 1), s.charAt(i + 2));
+            int h2 = Integer.rotateLeft(h1, 16) | 1;
+            for (int k = 0; k < HASHES; k++) {
+                int bit = Math.floorMod(h1 + k * h2, BITS);
+                if ((bits[bit >>> 6] & (1L << bit)) == 0) return false;
+            }
+        }
+        return true;
+    }
+
+    // every node must hash alike, so nothing here may depend on the JVM
+    private static int mix(char a, char b, char c) {
+        int h = a * 0x9E3779B1 ^ b * 0x85EBCA77 ^ c * 0xC2B2AE3D;
+        h ^= h >>> 15;
+        h *= 0x2C1B3C6D;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    // deflated: a small share leaves the filter mostly zero, which compresses to a few hundred bytes
+    public synchronized byte[] encode() {
+        byte[] raw = new byte[BITS / 8];
+        for (int i = 0; i < bits.length; i++) {
+            long w = bits[i];
+            for (int j = 0; j < 8; j++) {
+                raw[i * 8 + j] = (byte) (w >>> (8 * j));
+            }
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+            byte[] buf = new byte[1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // a read-only copy of a peer's summary; null if the data is not a summary this node understands
+    public static ShareSummary decode(byte[] data, int version) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] raw = new byte[BITS / 8];
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                int got = inflater.inflate(raw, n, raw.length - n);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += got;
+            }
+            if (n != raw.length || !inflater.finished()) {
+                return null;
+            }
+            long[] bits = new long[BITS / 64];
+            for (int i = 0; i < bits.length; i++) {
+                long w = 0;
+                for (int j = 0; j < 8; j++) {
+                    w |= (raw[i * 8 + j] & 0xffL) << (8 * j);
+                }
+                bits[i] = w;
+            }
+            return new ShareSummary(bits, version);
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// In-memory datagram network for tests and benchmarks. Every virtual node's loop runs on one driver thread
+// against a virtual clock, so thousands of nodes fit in one JVM. runFor() drives it from the caller and is
+// reproducible for a given seed as long as only loop code sends; start() paces virtual time to the wall clock
+// for nodes that also have download threads.
+public class SimulatedNetwork {
+
+    // zero bandwidth means unlimited
+    public static class LinkProfile {
+        private final long latencyMicros;
+        private final long jitterMicros;
+        private final double lossRate;
+        private final double reorderRate;
+        private final long bytesPerSecond;
+
+        public LinkProfile(long latencyMs, long jitterMs, double lossRate, double reorderRate, long bytesPerSecond) {
+            this.latencyMicros = latencyMs * 1000;
+            this.jitterMicros = jitterMs * 1000;
+            this.lossRate = lossRate;
+            this.reorderRate = reorderRate;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public static final LinkProfile PERFECT = new LinkProfile(0, 0, 0, 0, 0);
+    }
+
+    private static final class LinkState {
+        long busyUntil;
+        long lastArrival;
+    }
+
+    private static final class Event {
+        final long at;
+        final long order;
+        final Runnable action;
+
+        Event(long at, long order, Runnable action) {
+            this.at = at;
+            this.order = order;
+            this.action = action;
+        }
+    }
+
+    // virtual clock starts at a fixed, realistic epoch so runs don't depend on when they happen
+    private static final long START_MILLIS = 1_700_000_000_000L;
+
+    private final Object lock = new Object();
+    private final Random random;
+    private final PriorityQueue<Event> events = new PriorityQueue<>(
+            (a, b) -> a.at != b.at ? Long.compare(a.at, b.at) : Long.compare(a.order, b.order));
+    private final Map<InetSocketAddress, SimEndpoint> bound = new HashMap<>();
+    private final Map<InetSocketAddress, List<SimEndpoint>> groups = new HashMap<>();
+    private final Map<String, LinkProfile> links = new HashMap<>();
+    private final Map<String, LinkState> linkStates = new HashMap<>();
+    private LinkProfile defaultLink = LinkProfile.PERFECT;
+    private long nowMicros;
+    private long order;
+    private long delivered;
+    private long dropped;
+    private volatile Thread driver;
+    private volatile boolean realTime;
+    private long realTimeStartNanos;
+    private long realTimeStartMicros;
+
+    public SimulatedNetwork(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public Transport newTransport(String ip) {
+        return new SimTransport(ip);
+    }
+
+    public Transport.Factory factoryFor(String ip) {
+        return () -> newTransport(ip);
+    }
+
+    public void setDefaultLink(LinkProfile profile) {
+        synchronized (lock) {
+            defaultLink = profile;
+        }
+    }
+
+    // one direction only; set both for a symmetric link
+    public void setLink(String fromIp, String toIp, LinkProfile profile) {
+        synchronized (lock) {
+            links.put(fromIp + ">" + toIp, profile);
+        }
+    }
+
+    public long currentTimeMillis() {
+        synchronized (lock) {
+            return START_MILLIS + now() / 1000;
+        }
+    }
+
+    public long getDelivered() {
+        synchronized (lock) {
+            return delivered;
+        }
+    }
+
+    public long getDropped() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    // runs every event due within the next ms of virtual time on the calling thread; returns how many ran
+    public long runFor(long ms) {
+        if (realTime) {
+            throw new IllegalStateException("Network is running in real time");
+        }
+        long until;
+        synchronized (lock) {
+            until = nowMicros + ms * 1000;
+        }
+        driver = Thread.currentThread();
+        long ran = 0;
+        try {
+            while (step(until)) {
+                ran++;
+            }
+        } finally {
+            driver = null;
+        }
+        synchronized (lock) {
+            nowMicros = Math.max(nowMicros, until);
+        }
+        return ran;
+    }
+
+    // drives the network from a background thread, one virtual millisecond per wall-clock millisecond
+    public void start() {
+        synchronized (lock) {
+            realTimeStartNanos = System.nanoTime();
+            realTimeStartMicros = nowMicros;
+        }
+        realTime = true;
+        Thread t = new Thread(this::runRealTime, "SimulatedNetwork");
+        t.setDaemon(true);
+        driver = t;
+        t.start();
+    }
+
+    public void stop() {
+        realTime = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    private void runRealTime() {
+        while (realTime) {
+            long target;
+            synchronized (lock) {
+                target = now();
+            }
+            if (step(target)) continue;
+            synchronized (lock) {
+                nowMicros = Math.max(nowMicros, target);
+                Event next = events.peek();
+                long waitMs = (next == null) ? 100 : Math.max(1, (next.at - target) / 1000);
+                try {
+                    lock.wait(waitMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // runs the next event if it is due by until; the action runs outside the lock so it can send
+    private boolean step(long until) {
+        Event e;
+        synchronized (lock) {
+            e = events.peek();
+            if (e == null || e.at > until) return false;
+            events.poll();
+            nowMicros = Math.max(nowMicros, e.at);
+        }
+        try {
+            e.action.run();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        return true;
+    }
+
+    // caller holds the lock; in real time the clock keeps moving between events
+    private long now() {
+        if (!realTime) return nowMicros;
+        return Math.max(nowMicros, realTimeStartMicros + (System.nanoTime() - realTimeStartNanos) / 1000);
+    }
+
+    private void post(long delayMicros, Runnable action) {
+        synchronized (lock) {
+            events.add(new Event(now() + Math.max(0, delayMicros), order++, action));
+            lock.notifyAll();
+        }
+    }
+
+    private void transmit(SimEndpoint from, byte[] data, InetSocketAddress target) {
+        synchronized (lock) {
+            from.transport.packetsSent++;
+            List<SimEndpoint> members = groups.get(target);
+            if (members != null) {
+                // multicast reaches every member but the sender
+                for (SimEndpoint member : members) {
+                    if (!member.transport.ip.equals(from.transport.ip)) {
+                        deliver(from, member, data);
+                    }
+                }
+                return;
+            }
+            SimEndpoint to = bound.get(target);
+            if (to == null) {
+                dropped++;
+                return;
+            }
+            deliver(from, to, data);
+        }
+    }
+
+    // caller holds the lock
+    private void deliver(SimEndpoint from, SimEndpoint to, byte[] data) {
+        String key = from.transport.ip + ">" + to.transport.ip;
+        LinkProfile link = links.getOrDefault(key, defaultLink);
+        if (link.lossRate > 0 && random.nextDouble() < link.lossRate) {
+            dropped++;
+            return;
+        }
+        LinkState state = linkStates.computeIfAbsent(key, k -> new LinkState());
+        long departure = Math.max(now(), state.busyUntil);
+        if (link.bytesPerSecond > 0) {
+            departure += data.length * 1_000_000L / link.bytesPerSecond;
+            state.busyUntil = departure;
+        }
+        long arrival = departure + link.latencyMicros;
+        if (link.jitterMicros > 0) {
+            arrival += (long) (random.nextDouble() * link.jitterMicros);
+        }
+        if (link.reorderRate > 0 && random.nextDouble() < link.reorderRate) {
+            // held back so that datagrams sent after it overtake it
+            arrival += 1000 + (long) (random.nextDouble() * (link.latencyMicros + link.jitterMicros));
+        } else {
+            // otherwise a link is FIFO, whatever the jitter
+            arrival = Math.max(arrival, state.lastArrival);
+            state.lastArrival = arrival;
+        }
+        InetSocketAddress source = from.address;
+        events.add(new Event(arrival, order++, () -> receive(to, data, source)));
+        lock.notifyAll();
+    }
+
+    private void receive(SimEndpoint to, byte[] data, InetSocketAddress from) {
+        if (to.transport.stopped) {
+            return;
+        }
+        synchronized (lock) {
+            delivered++;
+        }
+        Packet pkt = TraceEvents.decode(data, from.getAddress().getHostAddress());
+        if (pkt.getType() == Packet.PacketType.BATCH) {
+            for (Packet inner : pkt.unbatch()) {
+                to.handler.onDatagram(inner, from);
+            }
+        } else {
+            to.handler.onDatagram(pkt, from);
+        }
+    }
+
+    private static final class SimEndpoint implements Transport.Endpoint {
+        final SimTransport transport;
+        final InetSocketAddress address;
+        final Transport.DatagramHandler handler;
+
+        SimEndpoint(SimTransport transport, InetSocketAddress address, Transport.DatagramHandler handler) {
+            this.transport = transport;
+            this.address = address;
+            this.handler = handler;
+        }
+
+        @Override
+        public void send(byte[] data, InetSocketAddress target) {
+            if (transport.stopped) return;
+            transport.network().transmit(this, data, target);
+        }
+    }
+
+    // one virtual node's view; datagrams are not batched, the simulator has no per-datagram cost to save
+    private final class SimTransport implements Transport {
+        final String ip;
+        final List<SimEndpoint> endpoints = new ArrayList<>();
+        volatile boolean stopped;
+        // written under the network lock
+        volatile long packetsSent;
+
+        SimTransport(String ip) {
+            this.ip = ip;
+        }
+
+        SimulatedNetwork network() {
+            return SimulatedNetwork.this;
+        }
+
+        @Override
+        public Endpoint openUnicast(int port, DatagramHandler handler) throws IOException {
+            SimEndpoint ep = new SimEndpoint(this, new InetSocketAddress(InetAddress.getByName(ip), port), handler);
+            synchronized (lock) {
+                if (bound.containsKey(ep.address)) {
+                    throw new IOException("Address already in use: " + ep.address);
+                }
+                bound.put(ep.address, ep);
+                endpoints.add(ep);
+            }
+            return ep;
+        }
+
+        @Override
+        public Endpoint openGroup(int port, InetAddress group, DatagramHandler handler) throws IOException {
+            SimEndpoint ep = (SimEndpoint) openUnicast(port, handler);
+            synchronized (lock) {
+                groups.computeIfAbsent(new InetSocketAddress(group, port), k -> new ArrayList<>()).add(ep);
+            }
+            return ep;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+            synchronized (lock) {
+                for (SimEndpoint ep : endpoints) {
+                    bound.remove(ep.address, ep);
+                    for (List<SimEndpoint> members : groups.values()) {
+                        members.remove(ep);
+                    }
+                }
+                endpoints.clear();
+            }
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            schedule(task, 0);
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMs) {
+            post(delayMs * 1000, () -> {
+                if (!stopped) task.run();
+            });
+        }
+
+        @Override
+        public boolean inLoop() {
+            return Thread.currentThread() == driver;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return SimulatedNetwork.this.currentTimeMillis();
+        }
+
+        @Override
+        public String getLocalIP() {
+            return ip;
+        }
+
+        @Override
+        public void setBatching(boolean batching) {
+        }
+
+        @Override
+        public long getPacketsSent() {
+            return packetsSent;
+        }
+
+        @Override
+        public long getDatagramsSent() {
+            return packetsSent;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class TokenBucket {
+
+    // fair lock: waiters are served in arrival order, so competing downloads share the rate evenly; it is only
+    // held to take tokens, never while sleeping, so tryAcquire on the network loop is never shut out
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private volatile long ratePerSec;
+    private long capacity;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(long ratePerSec, long capacity) {
+        this.ratePerSec = ratePerSec;
+        this.capacity = Math.max(1, capacity);
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    public void setRate(long ratePerSec, long capacity) {
+        lock.lock();
+        try {
+            this.ratePerSec = ratePerSec;
+            this.capacity = Math.max(1, capacity);
+            this.tokens = Math.min(tokens, this.capacity);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRatePerSec() {
+        return ratePerSec;
+    }
+
+    public boolean isUnlimited() {
+        return ratePerSec <= 0;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * ratePerSec / 1e9);
+        lastRefillNanos = now;
+    }
+
+    public void acquire(int amount) throws InterruptedException {
+        if (isUnlimited()) return;
+        while (true) {
+            long waitNanos;
+            lock.lockInterruptibly();
+            try {
+                long rate = ratePerSec;
+                if (rate <= 0) return;
+                refill();
+                // requests larger than the burst size go into debt instead of waiting forever
+                if (tokens >= Math.min(amount, capacity)) {
+                    tokens -= amount;
+                    return;
+                }
+                waitNanos = (long) ((Math.min(amount, capacity) - tokens) * 1e9 / rate);
+            } finally {
+                lock.unlock();
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, 100_000));
+        }
+    }
+
+    public boolean tryAcquire(int amount) {
+        if (isUnlimited()) return true;
+        lock.lock();
+        try {
+            refill();
+            if (tokens >= Math.min(amount, capacity)) {
+                tokens -= amount;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // gives back tokens taken for bytes that were not sent after all
+    public void refund(int amount) {
+        if (isUnlimited()) return;
+        lock.lock();
+        try {
+            refill();
+            tokens = Math.min(capacity, tokens + amount);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
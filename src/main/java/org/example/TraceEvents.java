@@ -0,0 +1,199 @@
+package org.example;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// JDK Flight Recorder events under the "P2P" category. Stack traces are off, so a continuous recording
+// stays cheap; turn them on per event in a .jfc when a call path is needed. A disabled event costs a
+// shouldCommit() check.
+final class TraceEvents {
+
+    private TraceEvents() {
+    }
+
+    @Name("org.example.PacketEncode")
+    @Label("Packet Encode")
+    @Category({"P2P", "Packets"})
+    @StackTrace(false)
+    static class PacketEncode extends Event {
+        @Label("Type") String type;
+        @Label("Wire Version") int wireVersion;
+        @Label("Hash") String hash;
+        @Label("Chunk Index") int chunkIndex;
+        @Label("Peer") String peer;
+        @Label("Size") @DataAmount long size;
+    }
+
+    @Name("org.example.PacketDecode")
+    @Label("Packet Decode")
+    @Category({"P2P", "Packets"})
+    @StackTrace(false)
+    static class PacketDecode extends Event {
+        @Label("Type") String type;
+        @Label("Wire Version") int wireVersion;
+        @Label("Hash") String hash;
+        @Label("Chunk Index") int chunkIndex;
+        @Label("Peer") String peer;
+        @Label("Size") @DataAmount long size;
+    }
+
+    @Name("org.example.ChunkRequest")
+    @Label("Chunk Request")
+    @Description("A chunk was asked for, in the first pass, by NACK or as an urgent streaming read")
+    @Category({"P2P", "Chunks"})
+    @StackTrace(false)
+    static class ChunkRequest extends Event {
+        @Label("Hash") String hash;
+        @Label("Chunk Index") int chunkIndex;
+        @Label("Peer") String peer;
+        @Label("Size") @DataAmount long size;
+        @Label("Retransmit") boolean retransmit;
+    }
+
+    @Name("org.example.ChunkResponse")
+    @Label("Chunk Response")
+    @Category({"P2P", "Chunks"})
+    @StackTrace(false)
+    static class ChunkResponse extends Event {
+        @Label("Hash") String hash;
+        @Label("Chunk Index") int chunkIndex;
+        @Label("Peer") String peer;
+        @Label("Size") @DataAmount long size;
+        @Label("Since Last Request") @Timespan(Timespan.MILLISECONDS) long sinceRequest;
+    }
+
+    @Name("org.example.ChunkDuplicate")
+    @Label("Chunk Duplicate")
+    @Description("A response for a chunk that was already held; its bandwidth was wasted")
+    @Category({"P2P", "Chunks"})
+    @StackTrace(false)
+    static class ChunkDuplicate extends Event {
+        @Label("Hash") String hash;
+        @Label("Chunk Index") int chunkIndex;
+        @Label("Peer") String peer;
+        @Label("Size") @DataAmount long size;
+    }
+
+    @Name("org.example.ChunkDiskRead")
+    @Label("Chunk Disk Read")
+    @Description("A chunk read from a shared file to serve a request, on a cache miss")
+    @Category({"P2P", "Disk"})
+    @StackTrace(false)
+    static class ChunkDiskRead extends Event {
+        @Label("Hash") String hash;
+        @Label("Chunk Index") int chunkIndex;
+        @Label("Peer") String peer;
+        @Label("Size") @DataAmount long size;
+    }
+
+    @Name("org.example.ChunkDiskWrite")
+    @Label("Chunk Disk Write")
+    @Category({"P2P", "Disk"})
+    @StackTrace(false)
+    static class ChunkDiskWrite extends Event {
+        @Label("Hash") String hash;
+        @Label("Chunk Index") int chunkIndex;
+        @Label("Peer") String peer;
+        @Label("Size") @DataAmount long size;
+    }
+
+    @Name("org.example.Search")
+    @Label("Search")
+    @Description("A query flooded to the group, or one received from a peer and answered")
+    @Category({"P2P", "Search"})
+    @StackTrace(false)
+    static class Search extends Event {
+        @Label("Direction") String direction;
+        @Label("Query") String query;
+        @Label("Peer") String peer;
+        @Label("Results") int results;
+        @Label("Size") @DataAmount long size;
+    }
+
+    static byte[] encode(Packet pkt, int version, String peer) {
+        PacketEncode e = new PacketEncode();
+        e.begin();
+        byte[] data = pkt.toBytes(version);
+        e.end();
+        if (e.shouldCommit()) {
+            e.type = pkt.getType().name();
+            e.wireVersion = version;
+            e.hash = pkt.getFileHash();
+            e.chunkIndex = pkt.getChunkIndex();
+            e.peer = peer;
+            e.size = data.length;
+            e.commit();
+        }
+        return data;
+    }
+
+    static Packet decode(byte[] data, String peer) {
+        PacketDecode e = new PacketDecode();
+        e.begin();
+        Packet pkt = Packet.fromBytes(data);
+        e.end();
+        if (e.shouldCommit()) {
+            e.type = pkt.getType().name();
+            e.wireVersion = pkt.getWireVersion();
+            e.hash = pkt.getFileHash();
+            e.chunkIndex = pkt.getChunkIndex();
+            e.peer = peer;
+            e.size = data.length;
+            e.commit();
+        }
+        return pkt;
+    }
+
+    static void chunkRequested(String hash, int index, String peer, long size, boolean retransmit) {
+        ChunkRequest e = new ChunkRequest();
+        if (e.shouldCommit()) {
+            e.hash = hash;
+            e.chunkIndex = index;
+            e.peer = peer;
+            e.size = size;
+            e.retransmit = retransmit;
+            e.commit();
+        }
+    }
+
+    static void chunkReceived(String hash, int index, String peer, long size, long sinceRequestMs) {
+        ChunkResponse e = new ChunkResponse();
+        if (e.shouldCommit()) {
+            e.hash = hash;
+            e.chunkIndex = index;
+            e.peer = peer;
+            e.size = size;
+            e.sinceRequest = sinceRequestMs;
+            e.commit();
+        }
+    }
+
+    static void chunkDuplicate(String hash, int index, String peer, long size) {
+        ChunkDuplicate e = new ChunkDuplicate();
+        if (e.shouldCommit()) {
+            e.hash = hash;
+            e.chunkIndex = index;
+            e.peer = peer;
+            e.size = size;
+            e.commit();
+        }
+    }
+
+    static void search(String direction, String query, String peer, int results, long size) {
+        Search e = new Search();
+        if (e.shouldCommit()) {
+            e.direction = direction;
+            e.query = query;
+            e.peer = peer;
+            e.results = results;
+            e.size = size;
+            e.commit();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+// What the protocol needs from the network: datagram endpoints, and one loop thread on which every
+// handler, task and timer runs. NetworkEventLoop is the real UDP one, SimulatedNetwork hands out in-memory ones.
+public interface Transport {
+
+    interface DatagramHandler {
+        void onDatagram(Packet pkt, InetSocketAddress from);
+    }
+
+    // a bound port; send never blocks, the datagram is queued for the loop
+    interface Endpoint {
+        void send(byte[] data, InetSocketAddress target);
+    }
+
+    // transports are single-use, so a node that reconnects asks for a fresh one
+    interface Factory {
+        Transport create() throws IOException;
+    }
+
+    Endpoint openUnicast(int port, DatagramHandler handler) throws IOException;
+
+    // multicast group, or broadcast when the address is not a multicast one
+    Endpoint openGroup(int port, InetAddress group, DatagramHandler handler) throws IOException;
+
+    void start();
+
+    void stop();
+
+    void execute(Runnable task);
+
+    void schedule(Runnable task, long delayMs);
+
+    boolean inLoop();
+
+    // the clock timers run on; simulated transports keep virtual time
+    long currentTimeMillis();
+
+    // the address peers see this node at
+    String getLocalIP();
+
+    void setBatching(boolean batching);
+
+    long getPacketsSent();
+
+    long getDatagramsSent();
+}
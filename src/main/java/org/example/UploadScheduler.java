@@ -0,0 +1,208 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+public class UploadScheduler implements Runnable {
+
+    public static final int DEFAULT_MAX_QUEUE_PER_PEER = 64;
+    public static final int DEFAULT_MAX_QUEUED_TOTAL = 1024;
+    private static final int QUANTUM = 4 * 1024;
+    // what a request is charged until it is served: one full chunk
+    private static final int ESTIMATED_COST = 4 * 1024;
+    private static final int BURST_MS = 250;
+    private static final long UNLIMITED_RETRY_AFTER_MS = 200;
+    // well under the 15 s a download waits for progress before it fails, so a polite wait never costs a download
+    static final long MAX_RETRY_AFTER_MS = 5000;
+
+    private static class PeerQueue {
+        final ArrayDeque<Packet> requests = new ArrayDeque<>();
+        int deficit;
+        boolean credited;
+    }
+
+    // serves one request and returns the bytes it sent
+    private final ToIntFunction<Packet> server;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<String, PeerQueue> queues = new HashMap<>();
+    // peers with pending requests, in deficit-round-robin visiting order
+    private final ArrayDeque<String> activePeers = new ArrayDeque<>();
+    private final TokenBucket uploadBucket = new TokenBucket(0, 1);
+    private int totalQueued;
+    private long queuedBytes;
+    private int maxQueuePerPeer = DEFAULT_MAX_QUEUE_PER_PEER;
+    private int maxQueuedTotal = DEFAULT_MAX_QUEUED_TOTAL;
+    private volatile boolean running;
+    private volatile long served;
+    private long rejected;
+
+    public UploadScheduler(ToIntFunction<Packet> server) {
+        this.server = server;
+    }
+
+    // bytes per second, 0 means unlimited
+    public void setUploadRate(long bytesPerSec) {
+        uploadBucket.setRate(bytesPerSec, Math.max(8 * 1024, bytesPerSec * BURST_MS / 1000));
+    }
+
+    public void setQueueLimits(int perPeer, int total) {
+        lock.lock();
+        try {
+            this.maxQueuePerPeer = Math.max(1, perPeer);
+            this.maxQueuedTotal = Math.max(1, total);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int costOf(Packet req) {
+        return ESTIMATED_COST;
+    }
+
+    // queues the request, or returns false when the peer (or the whole node) is over its limit
+    public boolean offer(Packet req) {
+        String peer = req.getSourceIP();
+        lock.lock();
+        try {
+            PeerQueue pq = queues.get(peer);
+            int queuedForPeer = (pq == null) ? 0 : pq.requests.size();
+            if (queuedForPeer >= maxQueuePerPeer || totalQueued >= maxQueuedTotal) {
+                rejected++;
+                return false;
+            }
+            if (pq == null) {
+                pq = new PeerQueue();
+                queues.put(peer, pq);
+                activePeers.addLast(peer);
+            }
+            pq.requests.addLast(req);
+            totalQueued++;
+            queuedBytes += costOf(req);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long estimateRetryAfterMs() {
+        long rate = uploadBucket.getRatePerSec();
+        lock.lock();
+        try {
+            if (rate <= 0) {
+                return UNLIMITED_RETRY_AFTER_MS;
+            }
+            return Math.min(MAX_RETRY_AFTER_MS, Math.max(50, queuedBytes * 1000 / rate));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Packet next() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (totalQueued == 0) {
+                notEmpty.await();
+            }
+            while (true) {
+                String peer = activePeers.peekFirst();
+                PeerQueue pq = queues.get(peer);
+                if (!pq.credited) {
+                    pq.deficit += QUANTUM;
+                    pq.credited = true;
+                }
+                Packet head = pq.requests.peekFirst();
+                int cost = costOf(head);
+                if (pq.deficit >= cost) {
+                    pq.requests.pollFirst();
+                    pq.deficit -= cost;
+                    totalQueued--;
+                    queuedBytes -= cost;
+                    if (pq.requests.isEmpty()) {
+                        activePeers.pollFirst();
+                        queues.remove(peer);
+                    }
+                    return head;
+                }
+                activePeers.pollFirst();
+                activePeers.addLast(peer);
+                pq.credited = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // a peer is charged the estimate when its request is picked and settles up once the real size is known,
+    // so short last chunks and requests that send nothing don't use up its share of the round
+    private void settle(Packet req, int bytesSent) {
+        lock.lock();
+        try {
+            PeerQueue pq = queues.get(req.getSourceIP());
+            if (pq != null) {
+                pq.deficit += costOf(req) - bytesSent;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // marks the scheduler running before its thread exists, so a stop() that comes first is never undone
+    public Thread start() {
+        running = true;
+        Thread t = new Thread(this, "UploadSchedulerThread");
+        t.start();
+        return t;
+    }
+
+    @Override
+    public void run() {
+        System.out.println("[UploadScheduler] Started.");
+        while (running) {
+            try {
+                Packet req = next();
+                int sent = server.applyAsInt(req);
+                settle(req, sent);
+                // paid after the send, since only then is the size known; the bucket lets one chunk go into debt
+                uploadBucket.acquire(sent);
+                served++;
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.println("[UploadScheduler] Stopped. served=" + served + ", rejected=" + rejected);
+    }
+
+    public void stop() {
+        running = false;
+        lock.lock();
+        try {
+            queues.clear();
+            activePeers.clear();
+            totalQueued = 0;
+            queuedBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getServedCount() {
+        return served;
+    }
+
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+}